@@ -0,0 +1,198 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto;
+
+import android.annotation.TargetApi;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+
+import com.toshi.util.LogUtil;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import static com.toshi.crypto.util.HashUtil.sha3;
+
+// Keeps the keys derived from the master seed, encrypted with a key that never leaves the
+// Android keystore, so a wallet can be loaded without running the BIP39 and BIP32 derivation.
+// The keystore only supports AES keys from Marshmallow, so on older versions nothing is cached.
+/* package */ class DerivedKeyCache {
+
+    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "derived_keys";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_TAG_LENGTH = 128;
+
+    private static final String CACHED_KEYS = "dk";
+    private static final String CACHED_KEYS_IV = "dki";
+
+    private static final int SEED_HASH_LENGTH = 32;
+    private static final int PRIVATE_KEY_LENGTH = 32;
+    private static final int PUBLIC_KEY_LENGTH = 65;
+    private static final int KEY_PAIR_LENGTH = PRIVATE_KEY_LENGTH + PUBLIC_KEY_LENGTH;
+
+    private final SharedPreferences prefs;
+
+    /* package */ static class Keys {
+        /* package */ final ECKey identityKey;
+        /* package */ final ECKey paymentKey;
+
+        private Keys(final ECKey identityKey, final ECKey paymentKey) {
+            this.identityKey = identityKey;
+            this.paymentKey = paymentKey;
+        }
+    }
+
+    /* package */ DerivedKeyCache(final SharedPreferences prefs) {
+        this.prefs = prefs;
+    }
+
+    /* package */ boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    // Returns null if nothing is cached for this master seed, or the cache can't be read
+    /* package */ @Nullable Keys read(final String masterSeed) {
+        if (!isSupported()) return null;
+
+        final String encrypted = this.prefs.getString(CACHED_KEYS, null);
+        final String iv = this.prefs.getString(CACHED_KEYS_IV, null);
+        if (encrypted == null || iv == null) return null;
+
+        byte[] plaintext = null;
+        try {
+            plaintext = decrypt(Base64.decode(encrypted, Base64.NO_WRAP), Base64.decode(iv, Base64.NO_WRAP));
+            if (plaintext.length != SEED_HASH_LENGTH + 2 * KEY_PAIR_LENGTH) return null;
+            final byte[] seedHash = Arrays.copyOfRange(plaintext, 0, SEED_HASH_LENGTH);
+            if (!Arrays.equals(seedHash, hashMasterSeed(masterSeed))) return null;
+
+            final ECKey identityKey = readKey(plaintext, SEED_HASH_LENGTH);
+            final ECKey paymentKey = readKey(plaintext, SEED_HASH_LENGTH + KEY_PAIR_LENGTH);
+            return new Keys(identityKey, paymentKey);
+        } catch (final GeneralSecurityException | IllegalArgumentException ex) {
+            LogUtil.exception(getClass(), "Unable to read cached keys", ex);
+            return null;
+        } finally {
+            if (plaintext != null) Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    /* package */ void write(final String masterSeed, final ECKey identityKey, final ECKey paymentKey) {
+        if (!isSupported() || masterSeed == null) return;
+
+        final byte[] plaintext = new byte[SEED_HASH_LENGTH + 2 * KEY_PAIR_LENGTH];
+        try {
+            System.arraycopy(hashMasterSeed(masterSeed), 0, plaintext, 0, SEED_HASH_LENGTH);
+            writeKey(identityKey, plaintext, SEED_HASH_LENGTH);
+            writeKey(paymentKey, plaintext, SEED_HASH_LENGTH + KEY_PAIR_LENGTH);
+
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, getOrCreateSecretKey());
+            final byte[] encrypted = cipher.doFinal(plaintext);
+
+            this.prefs.edit()
+                    .putString(CACHED_KEYS, Base64.encodeToString(encrypted, Base64.NO_WRAP))
+                    .putString(CACHED_KEYS_IV, Base64.encodeToString(cipher.getIV(), Base64.NO_WRAP))
+                    .apply();
+        } catch (final GeneralSecurityException ex) {
+            LogUtil.exception(getClass(), "Unable to cache keys", ex);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    /* package */ void clear() {
+        if (!isSupported()) return;
+        try {
+            final KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+            keyStore.load(null);
+            keyStore.deleteEntry(KEY_ALIAS);
+        } catch (final GeneralSecurityException | IOException ex) {
+            LogUtil.exception(getClass(), "Unable to delete cache key", ex);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private byte[] decrypt(final byte[] encrypted, final byte[] iv) throws GeneralSecurityException {
+        final SecretKey secretKey = getSecretKey();
+        if (secretKey == null) throw new GeneralSecurityException("Cache key is missing");
+        final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+        return cipher.doFinal(encrypted);
+    }
+
+    private @Nullable SecretKey getSecretKey() throws GeneralSecurityException {
+        try {
+            final KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+            keyStore.load(null);
+            return (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+        } catch (final IOException ex) {
+            throw new GeneralSecurityException(ex);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private SecretKey getOrCreateSecretKey() throws GeneralSecurityException {
+        final SecretKey existingKey = getSecretKey();
+        if (existingKey != null) return existingKey;
+
+        final KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER);
+        keyGenerator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .build());
+        return keyGenerator.generateKey();
+    }
+
+    private ECKey readKey(final byte[] source, final int offset) {
+        final byte[] privateKey = Arrays.copyOfRange(source, offset, offset + PRIVATE_KEY_LENGTH);
+        final byte[] publicKey = Arrays.copyOfRange(source, offset + PRIVATE_KEY_LENGTH, offset + KEY_PAIR_LENGTH);
+        try {
+            return ECKey.fromPrivateAndPrecalculatedPublic(privateKey, publicKey);
+        } finally {
+            Arrays.fill(privateKey, (byte) 0);
+        }
+    }
+
+    private void writeKey(final ECKey key, final byte[] destination, final int offset) {
+        final byte[] privateKey = key.getPrivKeyBytes();
+        System.arraycopy(privateKey, 0, destination, offset, PRIVATE_KEY_LENGTH);
+        System.arraycopy(key.getPubKey(), 0, destination, offset + PRIVATE_KEY_LENGTH, PUBLIC_KEY_LENGTH);
+        Arrays.fill(privateKey, (byte) 0);
+    }
+
+    private byte[] hashMasterSeed(final String masterSeed) {
+        try {
+            return sha3(masterSeed.getBytes("UTF-8"));
+        } catch (final UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -27,6 +27,7 @@ import com.toshi.crypto.jce.ECSignatureFactory;
 import com.toshi.crypto.jce.SpongyCastleProvider;
 import com.toshi.crypto.util.ByteUtil;
 import com.toshi.crypto.util.HashUtil;
+import com.toshi.crypto.util.HexCodec;
 import com.toshi.crypto.util.TypeConverter;
 
 import org.spongycastle.asn1.ASN1InputStream;
@@ -57,7 +58,6 @@ import org.spongycastle.math.ec.ECCurve;
 import org.spongycastle.math.ec.ECPoint;
 import org.spongycastle.util.BigIntegers;
 import org.spongycastle.util.encoders.Base64;
-import org.spongycastle.util.encoders.Hex;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -278,7 +278,7 @@ public class ECKey implements Serializable {
      * @return  -
      */
     public static ECKey fromPrivate(BigInteger privKey) {
-        return new ECKey(privKey, CURVE.getG().multiply(privKey));
+        return new ECKey(privKey, FixedBaseMultiplier.multiply(privKey));
     }
 
     /**
@@ -396,7 +396,7 @@ public class ECKey implements Serializable {
      * @return -
      */
     public static byte[] publicKeyFromPrivate(BigInteger privKey, boolean compressed) {
-        ECPoint point = CURVE.getG().multiply(privKey);
+        ECPoint point = FixedBaseMultiplier.multiply(privKey);
         return point.getEncoded(compressed);
     }
 
@@ -407,8 +407,7 @@ public class ECKey implements Serializable {
      * @return 20-byte address
      */
     public static byte[] computeAddress(byte[] pubBytes) {
-        return HashUtil.sha3omit12(
-                Arrays.copyOfRange(pubBytes, 1, pubBytes.length));
+        return HashUtil.sha3omit12(pubBytes, 1, pubBytes.length - 1);
     }
 
     /**
@@ -518,7 +517,7 @@ public class ECKey implements Serializable {
 
     @Override
     public String toString() {
-        return String.format("pub: %s", Hex.toHexString(pub.getEncoded(false)));
+        return String.format("pub: %s", HexCodec.encode(pub.getEncoded(false)));
     }
 
     /**
@@ -532,7 +531,7 @@ public class ECKey implements Serializable {
         StringBuilder b = new StringBuilder();
         b.append(toString());
         if (privKey != null && privKey instanceof BCECPrivateKey) {
-            b.append(" priv:").append(Hex.toHexString(((BCECPrivateKey) privKey).getD().toByteArray()));
+            b.append(" priv:").append(HexCodec.encode(((BCECPrivateKey) privKey).getD().toByteArray()));
         }
         return b.toString();
     }
@@ -717,6 +716,10 @@ public class ECKey implements Serializable {
      * @throws IllegalStateException if this ECKey does not have the private part.
      */
     public ECDSASignature sign(byte[] messageHash) {
+        if (privKey instanceof BCECPrivateKey) {
+            return signWithRecoveryId(((BCECPrivateKey) privKey).getD(), messageHash);
+        }
+
         ECDSASignature sig = doSign(messageHash);
         // Now we have to work backwards to figure out the recId needed to recover the signature.
         int recId = -1;
@@ -735,6 +738,53 @@ public class ECKey implements Serializable {
     }
 
 
+    /**
+     * Signs the hash the same way as {@link #doSign(byte[])} (RFC 6979 nonce, canonical S), but multiplies by G
+     * through the precomputed {@link FixedBaseMultiplier} table and takes the
+     * recovery id from the nonce point R while it is known, instead of trying to recover the public key
+     * with each of the four possible ids afterwards. Bit 0 of the recovery id is the parity of R's y
+     * coordinate, bit 1 is set if R's x coordinate was reduced modulo N to give r.
+     *
+     * @param privKeyD the private key
+     * @param messageHash 32 byte hash to sign
+     * @return signature with v set
+     */
+    private static ECDSASignature signWithRecoveryId(BigInteger privKeyD, byte[] messageHash) {
+        if (messageHash.length != 32) {
+            throw new IllegalArgumentException("Expected 32 byte input to ECDSA signature, not " + messageHash.length);
+        }
+        final BigInteger n = CURVE.getN();
+        final BigInteger e = new BigInteger(1, messageHash);
+        final HMacDSAKCalculator kCalculator = new HMacDSAKCalculator(new SHA256Digest());
+        kCalculator.init(n, privKeyD, messageHash);
+
+        BigInteger r;
+        BigInteger s;
+        int recId;
+        do {
+            BigInteger k;
+            do {
+                k = kCalculator.nextK();
+                final ECPoint p = FixedBaseMultiplier.multiply(k);
+                final BigInteger x = p.getAffineXCoord().toBigInteger();
+                r = x.mod(n);
+                recId = (p.getAffineYCoord().testBitZero() ? 1 : 0) | (x.compareTo(n) >= 0 ? 2 : 0);
+            } while (r.signum() == 0);
+            s = k.modInverse(n).multiply(e.add(privKeyD.multiply(r))).mod(n);
+        } while (s.signum() == 0);
+
+        // (r, N - S) is the signature made with the nonce -k, whose point is R mirrored in the x axis
+        if (s.compareTo(HALF_CURVE_ORDER) > 0) {
+            s = n.subtract(s);
+            recId ^= 1;
+        }
+
+        final ECDSASignature sig = new ECDSASignature(r, s);
+        sig.v = (byte) (recId + 27);
+        return sig;
+    }
+
+
     /**
      * Given a piece of text and a message signature encoded in base64, returns an ECKey
      * containing the public key that was used to sign it. This can then be compared to the expected public key to
@@ -0,0 +1,142 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto;
+
+
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.util.BigIntegers;
+
+import java.math.BigInteger;
+
+// Multiplies the secp256k1 generator G by a scalar using a table of precomputed multiples of G.
+// The scalar is split into 4 bit windows, and the table holds (d + 1) * 16^i * G for every window i
+// and digit d, so a multiplication is one point addition per window and no doublings.
+//
+// Digits are offset by one so no table entry is the point at infinity, and the sum of the offsets
+// is subtracted up front. The digits are read from the scalar with shifts and masks, and the entry
+// for a digit is picked by reading all 16 entries of the window and masking out all but one, so
+// neither the branches taken nor the memory read depend on the scalar. The point additions are
+// BouncyCastle's, which are not constant time, so the multiplication as a whole isn't either.
+//
+// The table is built on first use and takes about 1000 points.
+/* package */ final class FixedBaseMultiplier {
+
+    private static final int WINDOW_BITS = 4;
+    private static final int DIGITS_PER_WINDOW = 1 << WINDOW_BITS;
+    private static final int SCALAR_BYTES = 32;
+    private static final int COORDINATE_BYTES = 32;
+    private static final int COORDINATE_WORDS = COORDINATE_BYTES / 4;
+
+    private FixedBaseMultiplier() {}
+
+    /* package */ static ECPoint multiply(final BigInteger scalar) {
+        final BigInteger k = scalar.mod(ECKey.CURVE.getN());
+        final byte[] scalarBytes = BigIntegers.asUnsignedByteArray(SCALAR_BYTES, k);
+        final int[][][] multiples = Table.MULTIPLES;
+        final ECCurve curve = ECKey.CURVE.getCurve();
+
+        ECPoint result = Table.NEGATED_OFFSET;
+        for (int window = 0; window < multiples.length; window++) {
+            final int[] coordinates = select(multiples[window], digitAt(scalarBytes, window));
+            result = result.add(curve.createPoint(
+                    toBigInteger(coordinates, 0),
+                    toBigInteger(coordinates, COORDINATE_WORDS)));
+        }
+        return result.normalize();
+    }
+
+    // Windows are counted from the least significant end of the big-endian scalar
+    private static int digitAt(final byte[] scalarBytes, final int window) {
+        final int scalarByte = scalarBytes[SCALAR_BYTES - 1 - (window >> 1)] & 0xFF;
+        return (scalarByte >>> ((window & 1) * WINDOW_BITS)) & (DIGITS_PER_WINDOW - 1);
+    }
+
+    // Reads every entry, and keeps the words of the one at index digit
+    private static int[] select(final int[][] row, final int digit) {
+        final int[] selected = new int[2 * COORDINATE_WORDS];
+        for (int candidate = 0; candidate < row.length; candidate++) {
+            // All ones when candidate == digit, zero otherwise
+            final int mask = ((candidate ^ digit) - 1) >> 31;
+            final int[] entry = row[candidate];
+            for (int i = 0; i < selected.length; i++) {
+                selected[i] |= entry[i] & mask;
+            }
+        }
+        return selected;
+    }
+
+    private static BigInteger toBigInteger(final int[] words, final int offset) {
+        final byte[] bytes = new byte[COORDINATE_BYTES];
+        for (int i = 0; i < COORDINATE_WORDS; i++) {
+            final int word = words[offset + i];
+            bytes[4 * i] = (byte) (word >>> 24);
+            bytes[4 * i + 1] = (byte) (word >>> 16);
+            bytes[4 * i + 2] = (byte) (word >>> 8);
+            bytes[4 * i + 3] = (byte) word;
+        }
+        return new BigInteger(1, bytes);
+    }
+
+    private static void toWords(final BigInteger value, final int[] words, final int offset) {
+        final byte[] bytes = BigIntegers.asUnsignedByteArray(COORDINATE_BYTES, value);
+        for (int i = 0; i < COORDINATE_WORDS; i++) {
+            words[offset + i] = (bytes[4 * i] & 0xFF) << 24
+                    | (bytes[4 * i + 1] & 0xFF) << 16
+                    | (bytes[4 * i + 2] & 0xFF) << 8
+                    | (bytes[4 * i + 3] & 0xFF);
+        }
+    }
+
+    // Holder class, so the table is built once on first use and safely shared between threads.
+    // Entries are the affine x and y coordinates, as big-endian 32 bit words.
+    private static class Table {
+        private static final int[][][] MULTIPLES;
+        private static final ECPoint NEGATED_OFFSET;
+
+        static {
+            final ECCurve curve = ECKey.CURVE.getCurve();
+            final int windows = (ECKey.CURVE.getN().bitLength() + WINDOW_BITS - 1) / WINDOW_BITS;
+            MULTIPLES = new int[windows][][];
+
+            ECPoint windowBase = ECKey.CURVE.getG();
+            ECPoint offset = curve.getInfinity();
+            final ECPoint[] row = new ECPoint[DIGITS_PER_WINDOW];
+            for (int window = 0; window < windows; window++) {
+                ECPoint multiple = windowBase;
+                for (int digit = 0; digit < DIGITS_PER_WINDOW; digit++) {
+                    row[digit] = multiple;
+                    multiple = multiple.add(windowBase);
+                }
+                curve.normalizeAll(row);
+
+                MULTIPLES[window] = new int[DIGITS_PER_WINDOW][2 * COORDINATE_WORDS];
+                for (int digit = 0; digit < DIGITS_PER_WINDOW; digit++) {
+                    toWords(row[digit].getAffineXCoord().toBigInteger(), MULTIPLES[window][digit], 0);
+                    toWords(row[digit].getAffineYCoord().toBigInteger(), MULTIPLES[window][digit], COORDINATE_WORDS);
+                }
+
+                offset = offset.add(windowBase);
+                for (int bit = 0; bit < WINDOW_BITS; bit++) {
+                    windowBase = windowBase.twice();
+                }
+            }
+            NEGATED_OFFSET = offset.negate().normalize();
+        }
+    }
+}
@@ -22,6 +22,7 @@ import android.content.SharedPreferences;
 import android.support.annotation.NonNull;
 
 import com.toshi.crypto.hdshim.EthereumKeyChainGroup;
+import com.toshi.crypto.hdshim.EthereumPaymentKeyChain;
 import com.toshi.crypto.util.TypeConverter;
 import com.toshi.exception.InvalidMasterSeedException;
 import com.toshi.util.FileNames;
@@ -38,6 +39,9 @@ import org.bitcoinj.wallet.Wallet;
 
 import java.io.IOException;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import rx.Single;
 
@@ -51,24 +55,27 @@ public class HDWallet {
 
     private static final String MASTER_SEED = "ms";
     private SharedPreferences prefs;
+    private DerivedKeyCache derivedKeyCache;
     private ECKey identityKey;
     private ECKey paymentKey;
+    private EthereumPaymentKeyChain paymentKeyChain;
     private String masterSeed;
 
     public HDWallet() {
         this.prefs = BaseApplication.get().getSharedPreferences(FileNames.WALLET_PREFS, Context.MODE_PRIVATE);
+        this.derivedKeyCache = new DerivedKeyCache(this.prefs);
     }
 
     public HDWallet(@NonNull final SharedPreferences preferences) {
         this.prefs = preferences;
+        this.derivedKeyCache = new DerivedKeyCache(this.prefs);
     }
 
     public Single<HDWallet> getExistingWallet() {
         return Single.fromCallable(() -> {
             this.masterSeed = readMasterSeedFromStorage();
             if (this.masterSeed == null) throw new InvalidMasterSeedException(new Throwable("Master seed is null"));
-            final Wallet wallet = initFromMasterSeed(this.masterSeed);
-            deriveKeysFromWallet(wallet);
+            loadKeys(this.masterSeed);
 
             return this;
         });
@@ -77,16 +84,33 @@ public class HDWallet {
     public Single<HDWallet> getOrCreateWallet() {
         return Single.fromCallable(() -> {
             this.masterSeed = readMasterSeedFromStorage();
-            final Wallet wallet = this.masterSeed == null
-                    ? generateNewWallet()
-                    : initFromMasterSeed(this.masterSeed);
-
-            deriveKeysFromWallet(wallet);
+            if (this.masterSeed == null) {
+                deriveKeysFromWallet(generateNewWallet());
+                this.derivedKeyCache.write(this.masterSeed, this.identityKey, this.paymentKey);
+            } else {
+                loadKeys(this.masterSeed);
+            }
 
             return this;
         });
     }
 
+    // Deriving the keys from the master seed takes the BIP39 key stretching and a full
+    // bitcoinj wallet, so it's only done the first time and the keys are cached after that.
+    private void loadKeys(final String masterSeed) {
+        final long startTime = System.nanoTime();
+        final DerivedKeyCache.Keys cachedKeys = this.derivedKeyCache.read(masterSeed);
+        if (cachedKeys != null) {
+            this.identityKey = cachedKeys.identityKey;
+            this.paymentKey = cachedKeys.paymentKey;
+        } else {
+            deriveKeysFromWallet(initFromMasterSeed(masterSeed));
+            this.derivedKeyCache.write(masterSeed, this.identityKey, this.paymentKey);
+        }
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        LogUtil.d(getClass(), "Loaded " + (cachedKeys != null ? "cached" : "derived") + " keys in " + elapsedMillis + "ms");
+    }
+
     private Wallet generateNewWallet() {
         final Wallet walletForSeed = new Wallet(getNetworkParameters());
         final DeterministicSeed seed = walletForSeed.getKeyChainSeed();
@@ -114,6 +138,7 @@ public class HDWallet {
                 final Wallet wallet = constructFromSeed(seed);
                 deriveKeysFromWallet(wallet);
                 saveMasterSeedToStorage(masterSeed);
+                this.derivedKeyCache.write(masterSeed, this.identityKey, this.paymentKey);
                 return this;
             } catch (final UnreadableWalletException | MnemonicException e) {
                 throw new InvalidMasterSeedException(e);
@@ -144,24 +169,51 @@ public class HDWallet {
     }
 
     private void deriveIdentityKey(final Wallet wallet) throws IOException, UnreadableWalletException {
-        this.identityKey = deriveKeyFromWallet(wallet, 0, KeyChain.KeyPurpose.AUTHENTICATION);
+        this.identityKey = deriveKeyFromWallet(wallet, KeyChain.KeyPurpose.AUTHENTICATION);
     }
 
     private void derivePaymentKey(final Wallet wallet) throws IOException, UnreadableWalletException {
-        this.paymentKey = deriveKeyFromWallet(wallet, 0, KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        this.paymentKey = deriveKeyFromWallet(wallet, KeyChain.KeyPurpose.RECEIVE_FUNDS);
     }
 
-    private ECKey deriveKeyFromWallet(final Wallet wallet, final int iteration, final KeyChain.KeyPurpose keyPurpose) throws UnreadableWalletException, IOException {
-        DeterministicKey key = null;
-        for (int i = 0; i <= iteration; i++) {
-            key = wallet.freshKey(keyPurpose);
-        }
+    // The key chain always returns the key at the path for the purpose, other
+    // payment keys are derived through getPaymentAddresses
+    private ECKey deriveKeyFromWallet(final Wallet wallet, final KeyChain.KeyPurpose keyPurpose) throws UnreadableWalletException, IOException {
+        final DeterministicKey key = wallet.freshKey(keyPurpose);
 
         if (key == null) {
             throw new IOException("Unable to derive key");
         }
 
-        return ECKey.fromPrivate(key.getPrivKey());
+        // The key chain has already calculated the public key, so there's no need to multiply again
+        return ECKey.fromPrivateAndPrecalculatedPublic(key.getPrivKeyBytes(), key.getPubKeyPoint().getEncoded(false));
+    }
+
+    // The payment addresses m/44'/60'/0'/0/i for count indexes from fromIndex.
+    // The address at index 0 is the one returned by getPaymentAddress.
+    public Single<List<String>> getPaymentAddresses(final int fromIndex, final int count) {
+        return getPaymentKeyChain()
+                .flatMap(paymentKeyChain -> paymentKeyChain.deriveKeys(fromIndex, count))
+                .map(keys -> {
+                    final List<String> addresses = new ArrayList<>(keys.size());
+                    for (final ECKey key : keys) {
+                        addresses.add(TypeConverter.toJsonHex(key.getAddress()));
+                    }
+                    return addresses;
+                });
+    }
+
+    // Deriving the parent chain needs the seed, so it's only done the first time it's used
+    private Single<EthereumPaymentKeyChain> getPaymentKeyChain() {
+        return Single.fromCallable(() -> {
+            synchronized (this) {
+                if (this.paymentKeyChain == null) {
+                    if (this.masterSeed == null) throw new InvalidMasterSeedException(new Throwable("Master seed is null"));
+                    this.paymentKeyChain = new EthereumPaymentKeyChain(getSeed(this.masterSeed));
+                }
+                return this.paymentKeyChain;
+            }
+        });
     }
 
     public String signIdentity(final String data) {
@@ -225,6 +277,9 @@ public class HDWallet {
                 .putString(MASTER_SEED, masterSeed)
                 .apply();
         this.masterSeed = masterSeed;
+        synchronized (this) {
+            this.paymentKeyChain = null;
+        }
     }
 
     private String readMasterSeedFromStorage() {
@@ -236,6 +291,7 @@ public class HDWallet {
                 .edit()
                 .clear()
                 .apply();
+        this.derivedKeyCache.clear();
     }
 
     private String seedToString(final DeterministicSeed seed) {
@@ -18,8 +18,7 @@
 package com.toshi.crypto.db;
 
 import com.toshi.crypto.util.FastByteComparisons;
-
-import org.spongycastle.util.encoders.Hex;
+import com.toshi.crypto.util.HexCodec;
 
 import java.io.Serializable;
 import java.util.Arrays;
@@ -63,6 +62,6 @@ public class ByteArrayWrapper implements Comparable<ByteArrayWrapper>, Serializa
 
     @Override
     public String toString() {
-        return Hex.toHexString(data);
+        return HexCodec.encode(data);
     }
 }
@@ -0,0 +1,92 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto.hdshim;
+
+
+import com.google.common.collect.ImmutableList;
+import com.toshi.crypto.ECKey;
+
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.wallet.DeterministicSeed;
+
+import java.util.Arrays;
+import java.util.List;
+
+import rx.Observable;
+import rx.Single;
+import rx.schedulers.Schedulers;
+
+// Derives the payment keys m/44'/60'/0'/0/i directly from the key of their parent chain,
+// which is derived once. Each extra key costs one child derivation, one multiplication
+// and one Keccak, and ranges of keys are derived in parallel.
+public class EthereumPaymentKeyChain {
+
+    // ETH44_ACCOUNT_ZERO_CHAIN_PATH = m/44'/60'/0'/0
+    private static final ImmutableList<ChildNumber> ETH44_ACCOUNT_ZERO_CHAIN_PATH =
+            ImmutableList.of(
+                    new ChildNumber(44, true),
+                    new ChildNumber(60, true),
+                    ChildNumber.ZERO_HARDENED,
+                    ChildNumber.ZERO);
+
+    private final DeterministicKey chainKey;
+
+    public EthereumPaymentKeyChain(final DeterministicSeed seed) {
+        DeterministicKey key = HDKeyDerivation.createMasterPrivateKey(seed.getSeedBytes());
+        for (final ChildNumber childNumber : ETH44_ACCOUNT_ZERO_CHAIN_PATH) {
+            key = HDKeyDerivation.deriveChildKey(key, childNumber);
+        }
+        this.chainKey = key;
+    }
+
+    // The key at m/44'/60'/0'/0/index
+    public ECKey deriveKey(final int index) {
+        final HDKeyDerivation.RawKeyBytes childKeyBytes =
+                HDKeyDerivation.deriveChildKeyBytesFromPrivate(this.chainKey, new ChildNumber(index, false));
+        final ECKey key = ECKey.fromPrivate(childKeyBytes.keyBytes);
+        // The address is cached by the key, so calculate it on the thread doing the derivation
+        key.getAddress();
+        return key;
+    }
+
+    // The keys at m/44'/60'/0'/0/fromIndex up to, but not including, fromIndex + count.
+    // The range is split into one run of consecutive indexes per core.
+    public Single<List<ECKey>> deriveKeys(final int fromIndex, final int count) {
+        if (count <= 0) return Single.just(Arrays.asList(new ECKey[0]));
+
+        final ECKey[] keys = new ECKey[count];
+        final int numberOfRuns = Math.min(count, Runtime.getRuntime().availableProcessors());
+        final int runLength = (count + numberOfRuns - 1) / numberOfRuns;
+        return Observable.range(0, numberOfRuns)
+                .flatMap(run -> Observable.fromCallable(() -> deriveKeysInto(keys, fromIndex, run * runLength, runLength))
+                        .subscribeOn(Schedulers.computation()))
+                .toList()
+                .toSingle()
+                .map(__ -> Arrays.asList(keys));
+    }
+
+    private Void deriveKeysInto(final ECKey[] keys, final int fromIndex, final int start, final int length) {
+        final int end = Math.min(keys.length, start + length);
+        for (int i = start; i < end; i++) {
+            keys[i] = deriveKey(fromIndex + i);
+        }
+        return null;
+    }
+}
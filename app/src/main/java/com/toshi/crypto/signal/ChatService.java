@@ -114,7 +114,7 @@ public final class ChatService extends SignalServiceAccountManager {
         this.client.addInterceptor(interceptor);
     }
 
-    public Completable registerKeys(final ProtocolStore protocolStore) {
+    public Completable registerKeys(final ProtocolStore protocolStore, final List<PreKeyRecord> preKeys) {
         try {
             return registerKeys(
                     protocolStore.getIdentityKeyPair().getPublicKey(),
@@ -123,7 +123,7 @@ public final class ChatService extends SignalServiceAccountManager {
                     protocolStore.getLocalRegistrationId(),
                     protocolStore.getSignalingKey(),
                     protocolStore.getSignedPreKey(),
-                    protocolStore.getPreKeys()
+                    preKeys
             );
         } catch (final IOException | InvalidKeyIdException | InvalidKeyException ex) {
             LogUtil.e(getClass(), "ERROR!" + ex.toString());
@@ -131,6 +131,16 @@ public final class ChatService extends SignalServiceAccountManager {
         }
     }
 
+    // Replaces the one-time prekeys the server has for this device with these, in one request
+    public void uploadPreKeys(final ProtocolStore protocolStore, final List<PreKeyRecord> preKeys)
+            throws IOException, InvalidKeyIdException, InvalidKeyException {
+        setPreKeys(
+                protocolStore.getIdentityKeyPair().getPublicKey(),
+                protocolStore.getLastResortKey(),
+                protocolStore.getSignedPreKey(),
+                preKeys);
+    }
+
     private Completable registerKeys(
             final IdentityKey identityKey,
             final PreKeyRecord lastResortKey,
@@ -0,0 +1,150 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto.signal.store;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// One file per record, named after its key. This is the layout the stores used
+// before the log, and is kept so existing records can be migrated from it.
+// Keys can name a file in a subdirectory, as in "prekeys/12"; only the subdirectories
+// given when the storage is created are listed by getKeys().
+/* package */ class FileRecordStorage implements RecordStorage {
+
+    private final File directory;
+    private final String[] subdirectories;
+
+    /* package */ FileRecordStorage(final File directory, final String... subdirectories) {
+        this.directory = directory;
+        this.subdirectories = subdirectories;
+    }
+
+    @Override
+    public @Nullable byte[] get(final String key) throws IOException {
+        final RandomAccessFile recordFile;
+        try {
+            recordFile = new RandomAccessFile(getFile(key), "r");
+        } catch (final FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            final byte[] value = new byte[(int) recordFile.length()];
+            recordFile.readFully(value);
+            return value;
+        } finally {
+            recordFile.close();
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> read(final Collection<String> keys) throws IOException {
+        final Map<String, byte[]> records = new HashMap<>(keys.size());
+        for (final String key : keys) {
+            final byte[] value = get(key);
+            if (value != null) {
+                records.put(key, value);
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public void put(final String key, final byte[] value) throws IOException {
+        final RandomAccessFile recordFile = new RandomAccessFile(getFile(key), "rw");
+        try {
+            final FileChannel out = recordFile.getChannel();
+            out.position(0);
+            out.write(ByteBuffer.wrap(value));
+            out.truncate(out.position());
+        } finally {
+            recordFile.close();
+        }
+    }
+
+    @Override
+    public void remove(final String key) {
+        getFile(key).delete();
+    }
+
+    // Written one file at a time, so unlike the log, a crash can leave some of the records written
+    @Override
+    public void write(final Map<String, byte[]> records) throws IOException {
+        for (final Map.Entry<String, byte[]> record : records.entrySet()) {
+            if (record.getValue() == null) {
+                remove(record.getKey());
+            } else {
+                put(record.getKey(), record.getValue());
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return getFile(key).exists();
+    }
+
+    @Override
+    public List<String> getKeys() {
+        if (this.subdirectories.length == 0) {
+            return listFiles(this.directory, "");
+        }
+
+        final List<String> keys = new ArrayList<>();
+        for (final String subdirectory : this.subdirectories) {
+            keys.addAll(listFiles(new File(this.directory, subdirectory), subdirectory + "/"));
+        }
+        return keys;
+    }
+
+    @Override
+    public void sync() {
+        // Every put closes its file, there is nothing left to write
+    }
+
+    private File getFile(final String key) {
+        return new File(this.directory, key);
+    }
+
+    private static List<String> listFiles(final File directory, final String keyPrefix) {
+        final String[] children = directory.list();
+        if (children == null) {
+            return Collections.emptyList();
+        }
+
+        final List<String> keys = new ArrayList<>(children.length);
+        for (final String child : children) {
+            if (new File(directory, child).isFile()) {
+                keys.add(keyPrefix + child);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,549 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto.signal.store;
+
+import android.support.annotation.Nullable;
+
+import com.toshi.util.LogUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// All records in a single append-only file. The file is memory mapped, and an index
+// of where the latest version of every record starts is kept in memory, so a get is
+// a map lookup and a copy, and a put is a copy to the end of the mapping.
+//
+// File layout: a header (magic, format version), followed by records of
+// [crc32, key length, value length, key, value]. A removed record is written with a value
+// length of -1. The crc covers everything in the record after it. Records written together
+// by write() are wrapped in a batch of [crc32, -1, length of the records, records], with a crc
+// over the whole batch. The file is grown in steps and the unused space at the end is zeros,
+// which never reads as a valid record.
+//
+// When a record or batch is only partially written, because the app died or the device lost
+// power, its crc doesn't match, and it and anything after it is dropped when the file is opened.
+// Records are not flushed to disk on every put, in the same way the per-file stores never were;
+// call sync() when they have to be.
+//
+// Once more than half of the file is overwritten or removed records, the live records are
+// copied to a new file in the background, which then replaces the old file with a rename.
+/* package */ class LogRecordStorage implements RecordStorage {
+
+    private static final int MAGIC = 0x544c4f47;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int TOMBSTONE = -1;
+    private static final int BATCH = -1;
+    private static final int MAX_KEY_LENGTH = 1024;
+    private static final int MIN_CAPACITY = 64 * 1024;
+    private static final int MIN_COMPACTION_SIZE = 256 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final String COMPACTION_SUFFIX = ".compact";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final Map<String, Entry> index = new HashMap<>();
+    private RandomAccessFile recordFile;
+    private MappedByteBuffer buffer;
+    private int end;
+    private long liveBytes;
+    private boolean compacting;
+    private boolean closed;
+
+    /* package */ LogRecordStorage(final File file) throws IOException {
+        this.file = file;
+        getCompactionFile().delete();
+        open();
+    }
+
+    @Override
+    public synchronized @Nullable byte[] get(final String key) {
+        final Entry entry = this.index.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        final byte[] value = new byte[entry.valueLength];
+        final ByteBuffer view = this.buffer.duplicate();
+        view.position(entry.getValueOffset());
+        view.get(value);
+        return value;
+    }
+
+    @Override
+    public synchronized Map<String, byte[]> read(final Collection<String> keys) {
+        final Map<String, byte[]> records = new HashMap<>(keys.size());
+        for (final String key : keys) {
+            final byte[] value = get(key);
+            if (value != null) {
+                records.put(key, value);
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public synchronized void put(final String key, final byte[] value) throws IOException {
+        append(encodeRecord(key, value));
+    }
+
+    @Override
+    public synchronized void remove(final String key) throws IOException {
+        if (this.index.containsKey(key)) {
+            append(encodeRecord(key, null));
+        }
+    }
+
+    @Override
+    public synchronized void write(final Map<String, byte[]> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        final List<byte[]> encoded = new ArrayList<>(records.size());
+        int length = 0;
+        for (final Map.Entry<String, byte[]> record : records.entrySet()) {
+            final byte[] encodedRecord = encodeRecord(record.getKey(), record.getValue());
+            encoded.add(encodedRecord);
+            length += encodedRecord.length;
+        }
+
+        final byte[] batch = new byte[RECORD_HEADER_SIZE + length];
+        final ByteBuffer batchBuffer = ByteBuffer.wrap(batch);
+        batchBuffer.position(4);
+        batchBuffer.putInt(BATCH);
+        batchBuffer.putInt(length);
+        for (final byte[] encodedRecord : encoded) {
+            batchBuffer.put(encodedRecord);
+        }
+        batchBuffer.putInt(0, checksum(batch, 4, batch.length - 4));
+        append(batch);
+    }
+
+    @Override
+    public synchronized boolean contains(final String key) {
+        return this.index.containsKey(key);
+    }
+
+    @Override
+    public synchronized List<String> getKeys() {
+        return new ArrayList<>(this.index.keySet());
+    }
+
+    @Override
+    public synchronized void sync() {
+        this.buffer.force();
+    }
+
+    /* package */ synchronized void close() throws IOException {
+        this.closed = true;
+        this.recordFile.close();
+    }
+
+    // The share of the file taken up by overwritten and removed records
+    /* package */ synchronized double getGarbageRatio() {
+        final int used = this.end - HEADER_SIZE;
+        return used == 0 ? 0 : 1 - (double) this.liveBytes / used;
+    }
+
+    private void open() throws IOException {
+        this.recordFile = new RandomAccessFile(this.file, "rw");
+        if (this.recordFile.length() < HEADER_SIZE) {
+            this.recordFile.setLength(MIN_CAPACITY);
+            this.buffer = map(MIN_CAPACITY);
+            writeHeader();
+            this.end = HEADER_SIZE;
+            return;
+        }
+
+        this.buffer = map((int) this.recordFile.length());
+        // The file was created, but the device lost power before the header reached the disk.
+        // Any records were written after the header, so there is nothing to recover.
+        if (this.buffer.getInt(0) == 0 && this.buffer.getInt(4) == 0) {
+            LogUtil.w(getClass(), "Reinitialising " + this.file.getName() + ", its header was never written");
+            writeHeader();
+        }
+        if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != FORMAT_VERSION) {
+            this.recordFile.close();
+            throw new IOException("Unknown record log format: " + this.file);
+        }
+        recover();
+    }
+
+    // Synced straight away, so a file that exists always has a header on disk
+    private void writeHeader() {
+        this.buffer.putInt(0, MAGIC);
+        this.buffer.putInt(4, FORMAT_VERSION);
+        this.buffer.force();
+    }
+
+    // Rebuilds the index from the records in the file, and drops anything after
+    // the last record that was written completely.
+    private void recover() {
+        int position = HEADER_SIZE;
+
+        while (true) {
+            final int length = getFrameLength(this.buffer, position, this.buffer.capacity());
+            if (length < 0) {
+                break;
+            }
+
+            final byte[] frame = new byte[length];
+            final ByteBuffer view = this.buffer.duplicate();
+            view.position(position);
+            view.get(frame);
+            if (checksum(frame, 4, length - 4) != ByteBuffer.wrap(frame).getInt(0)) {
+                break;
+            }
+
+            indexFrame(this.index, this.buffer, position, position);
+            position += length;
+        }
+
+        this.end = position;
+        this.liveBytes = countLiveBytes(this.index);
+
+        if (!isZero(position)) {
+            LogUtil.w(getClass(), "Dropping a partially written record from " + this.file.getName());
+            final ByteBuffer view = this.buffer.duplicate();
+            view.position(position);
+            final byte[] zeros = new byte[Math.min(COPY_BUFFER_SIZE, view.remaining())];
+            while (view.hasRemaining()) {
+                view.put(zeros, 0, Math.min(zeros.length, view.remaining()));
+            }
+        }
+    }
+
+    // A single record, or a batch of them
+    private void append(final byte[] frame) throws IOException {
+        ensureCapacity((long) this.end + frame.length);
+        final ByteBuffer view = this.buffer.duplicate();
+        view.position(this.end);
+        view.put(frame);
+
+        this.liveBytes += indexFrame(this.index, ByteBuffer.wrap(frame), 0, this.end);
+        this.end += frame.length;
+        compactIfNeeded();
+    }
+
+    private void ensureCapacity(final long required) throws IOException {
+        if (required <= this.buffer.capacity()) {
+            return;
+        }
+        if (required > Integer.MAX_VALUE) {
+            throw new IOException("Record log is full: " + this.file);
+        }
+
+        final int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(required, 2L * this.buffer.capacity()));
+        this.recordFile.setLength(capacity);
+        this.buffer = map(capacity);
+    }
+
+    private MappedByteBuffer map(final int size) throws IOException {
+        return this.recordFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private boolean isZero(final int position) {
+        final int limit = Math.min(this.buffer.capacity(), position + RECORD_HEADER_SIZE);
+        for (int i = position; i < limit; i++) {
+            if (this.buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void compactIfNeeded() {
+        if (this.compacting || this.end < MIN_COMPACTION_SIZE || this.liveBytes * 2 > this.end - HEADER_SIZE) {
+            return;
+        }
+
+        this.compacting = true;
+        final Thread compaction = new Thread(this::compactInBackground, "RecordLogCompaction");
+        compaction.setDaemon(true);
+        compaction.start();
+    }
+
+    private void compactInBackground() {
+        try {
+            compact();
+        } catch (final IOException e) {
+            LogUtil.exception(getClass(), "Error during record log compaction", e);
+        } finally {
+            synchronized (this) {
+                this.compacting = false;
+            }
+        }
+    }
+
+    // The live records are copied without holding the lock, as records never change once
+    // they are written. Only the records written in the meantime are copied with it held.
+    /* package */ void compact() throws IOException {
+        final ByteBuffer snapshot;
+        final int snapshotEnd;
+        final Map<String, Entry> snapshotIndex;
+        synchronized (this) {
+            snapshot = this.buffer.duplicate();
+            snapshotEnd = this.end;
+            snapshotIndex = new HashMap<>(this.index);
+        }
+
+        final File compactionFile = getCompactionFile();
+        final RandomAccessFile compacted = new RandomAccessFile(compactionFile, "rw");
+        boolean isReplaced = false;
+        try {
+            compacted.setLength(0);
+            final Writer writer = new Writer(compacted.getChannel());
+            final Map<String, Entry> compactedIndex = new HashMap<>(snapshotIndex.size());
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION);
+            writer.write(header.array(), 0, HEADER_SIZE);
+
+            for (final Map.Entry<String, Entry> live : snapshotIndex.entrySet()) {
+                final Entry entry = live.getValue();
+                compactedIndex.put(live.getKey(), new Entry(writer.position, entry.recordLength, entry.valueLength));
+                writer.write(snapshot, entry.offset, entry.recordLength);
+            }
+
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+
+                // Records written while copying are copied as they are, removals included,
+                // so they are applied in the same order when the file is opened again.
+                int position = snapshotEnd;
+                final ByteBuffer view = this.buffer.duplicate();
+                while (position < this.end) {
+                    final int length = getFrameLength(view, position, this.end);
+                    indexFrame(compactedIndex, view, position, writer.position);
+                    writer.write(view, position, length);
+                    position += length;
+                }
+                writer.flush();
+
+                final int compactedEnd = writer.position;
+                final int compactedCapacity = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_CAPACITY, 2L * compactedEnd));
+                compacted.setLength(compactedCapacity);
+                compacted.getChannel().force(true);
+
+                // Everything that can fail is done before the rename. The open file follows the
+                // rename, so once it has succeeded the storage only has to switch over to it.
+                final MappedByteBuffer compactedBuffer = compacted.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, compactedCapacity);
+                if (!compactionFile.renameTo(this.file)) {
+                    throw new IOException("Unable to replace " + this.file);
+                }
+                isReplaced = true;
+
+                final RandomAccessFile replacedFile = this.recordFile;
+                this.recordFile = compacted;
+                this.buffer = compactedBuffer;
+                this.index.clear();
+                this.index.putAll(compactedIndex);
+                this.end = compactedEnd;
+                this.liveBytes = countLiveBytes(this.index);
+                closeQuietly(replacedFile);
+            }
+        } finally {
+            if (!isReplaced) {
+                compacted.close();
+                compactionFile.delete();
+            }
+        }
+    }
+
+    private void closeQuietly(final RandomAccessFile replacedFile) {
+        try {
+            replacedFile.close();
+        } catch (final IOException e) {
+            LogUtil.w(getClass(), "Unable to close the replaced record log: " + e);
+        }
+    }
+
+    private File getCompactionFile() {
+        return new File(this.file.getPath() + COMPACTION_SUFFIX);
+    }
+
+    private static byte[] encodeRecord(final String key, @Nullable final byte[] value) {
+        final byte[] keyBytes = key.getBytes(UTF_8);
+        if (keyBytes.length == 0 || keyBytes.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Invalid key length: " + keyBytes.length);
+        }
+
+        final int valueLength = value == null ? TOMBSTONE : value.length;
+        final byte[] record = new byte[RECORD_HEADER_SIZE + keyBytes.length + Math.max(0, valueLength)];
+        final ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+        recordBuffer.position(4);
+        recordBuffer.putInt(keyBytes.length);
+        recordBuffer.putInt(valueLength);
+        recordBuffer.put(keyBytes);
+        if (value != null) {
+            recordBuffer.put(value);
+        }
+        recordBuffer.putInt(0, checksum(record, 4, record.length - 4));
+        return record;
+    }
+
+    private static int checksum(final byte[] data, final int offset, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    // The length of the record or batch at the position, or -1 if there isn't a complete one before the limit
+    private static int getFrameLength(final ByteBuffer source, final int position, final int limit) {
+        if (position + RECORD_HEADER_SIZE > limit) {
+            return -1;
+        }
+
+        final int keyLength = source.getInt(position + 4);
+        final int length = source.getInt(position + 8);
+        final long frameLength;
+        if (keyLength == BATCH && length > 0) {
+            frameLength = (long) RECORD_HEADER_SIZE + length;
+        } else if (keyLength > 0 && keyLength <= MAX_KEY_LENGTH && length >= TOMBSTONE) {
+            frameLength = (long) RECORD_HEADER_SIZE + keyLength + Math.max(0, length);
+        } else {
+            return -1;
+        }
+        return position + frameLength > limit ? -1 : (int) frameLength;
+    }
+
+    // Adds the records in the record or batch at the position to the index, as if it was
+    // at the offset, and returns the change in the number of live bytes
+    private static long indexFrame(final Map<String, Entry> index,
+                                   final ByteBuffer source,
+                                   final int position,
+                                   final int offset) {
+        if (source.getInt(position + 4) != BATCH) {
+            return indexRecord(index, source, position, offset);
+        }
+
+        final int batchEnd = position + RECORD_HEADER_SIZE + source.getInt(position + 8);
+        long change = 0;
+        int recordPosition = position + RECORD_HEADER_SIZE;
+        while (recordPosition < batchEnd) {
+            final int recordLength = getFrameLength(source, recordPosition, batchEnd);
+            if (recordLength < 0) {
+                break;
+            }
+            change += indexRecord(index, source, recordPosition, offset + recordPosition - position);
+            recordPosition += recordLength;
+        }
+        return change;
+    }
+
+    private static long indexRecord(final Map<String, Entry> index,
+                                    final ByteBuffer source,
+                                    final int position,
+                                    final int offset) {
+        final int keyLength = source.getInt(position + 4);
+        final int valueLength = source.getInt(position + 8);
+        final int recordLength = RECORD_HEADER_SIZE + keyLength + Math.max(0, valueLength);
+        final byte[] keyBytes = new byte[keyLength];
+        final ByteBuffer view = source.duplicate();
+        view.position(position + RECORD_HEADER_SIZE);
+        view.get(keyBytes);
+        final String key = new String(keyBytes, UTF_8);
+
+        final Entry previous = valueLength == TOMBSTONE
+                ? index.remove(key)
+                : index.put(key, new Entry(offset, recordLength, valueLength));
+        final long added = valueLength == TOMBSTONE ? 0 : recordLength;
+        return previous == null ? added : added - previous.recordLength;
+    }
+
+    private static long countLiveBytes(final Map<String, Entry> index) {
+        long liveBytes = 0;
+        for (final Entry entry : index.values()) {
+            liveBytes += entry.recordLength;
+        }
+        return liveBytes;
+    }
+
+    private static class Entry {
+        private final int offset;
+        private final int recordLength;
+        private final int valueLength;
+
+        private Entry(final int offset, final int recordLength, final int valueLength) {
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.valueLength = valueLength;
+        }
+
+        private int getValueOffset() {
+            return this.offset + this.recordLength - this.valueLength;
+        }
+    }
+
+    // Batches the many small copies of a compaction into large writes
+    private static class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer pending = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        private int position;
+
+        private Writer(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void write(final byte[] source, final int offset, final int length) throws IOException {
+            write(ByteBuffer.wrap(source), offset, length);
+        }
+
+        private void write(final ByteBuffer source, final int offset, final int length) throws IOException {
+            final ByteBuffer view = source.duplicate();
+            view.limit(offset + length);
+            view.position(offset);
+            if (view.remaining() > this.pending.remaining()) {
+                flush();
+            }
+            if (view.remaining() > this.pending.remaining()) {
+                writeFully(view);
+            } else {
+                this.pending.put(view);
+            }
+            this.position += length;
+        }
+
+        private void flush() throws IOException {
+            this.pending.flip();
+            writeFully(this.pending);
+            this.pending.clear();
+        }
+
+        private void writeFully(final ByteBuffer source) throws IOException {
+            while (source.hasRemaining()) {
+                this.channel.write(source);
+            }
+        }
+    }
+}
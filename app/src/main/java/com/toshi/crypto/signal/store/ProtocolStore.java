@@ -42,15 +42,12 @@ import java.util.List;
 
 public class ProtocolStore implements SignalProtocolStore {
 
-    private static final int PREKEY_START = 1234;
-    private static final int PREKEY_COUNT = 100;
     private static final int SIGNED_PREKEY_ID = 1;
 
     private final PreKeyStore preKeyStore;
     private final SignedPreKeyStore signedPreKeyStore;
     private final IdentityKeyStore identityKeyStore;
     private final SignalSessionStore sessionStore;
-    private List<PreKeyRecord> preKeyRecords;
 
     public ProtocolStore() {
         this.preKeyStore  = new SignalPreKeyStore();
@@ -136,20 +133,9 @@ public class ProtocolStore implements SignalProtocolStore {
         return identityKeyStore.isTrustedIdentity(address, identityKey, direction);
     }
 
-    public List<PreKeyRecord> getPreKeys() throws InvalidKeyIdException {
-        if (!preKeysHaveBeenGenerated()) generatePreKeys();
-        return this.preKeyRecords;
-    }
-
-    private boolean preKeysHaveBeenGenerated() {
-        return this.preKeyStore.containsPreKey(PREKEY_START) && this.preKeyStore.containsPreKey(PREKEY_START + PREKEY_COUNT - 1);
-    }
-
-    private void generatePreKeys() {
-        this.preKeyRecords = PreKeyUtil.generatePreKeys(BaseApplication.get());
-        for (final PreKeyRecord preKeyRecord : preKeyRecords) {
-            storePreKey(preKeyRecord.getId(), preKeyRecord);
-        }
+    // A new batch of one-time prekeys, which is stored before it is returned
+    public List<PreKeyRecord> generatePreKeys() {
+        return PreKeyUtil.generatePreKeys(BaseApplication.get());
     }
 
     public PreKeyRecord getLastResortKey() throws IOException {
@@ -0,0 +1,50 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto.signal.store;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+// Where the Signal stores keep their records. Records are opaque byte arrays,
+// looked up by key; the stores take care of versioning and parsing them.
+/* package */ interface RecordStorage {
+
+    @Nullable byte[] get(String key) throws IOException;
+
+    // The records that exist, all read at once; keys without a record are left out
+    Map<String, byte[]> read(Collection<String> keys) throws IOException;
+
+    void put(String key, byte[] value) throws IOException;
+
+    void remove(String key) throws IOException;
+
+    // Puts the records, and removes those with a null value, so that either
+    // all of them or none of them are there after a crash
+    void write(Map<String, byte[]> records) throws IOException;
+
+    boolean contains(String key);
+
+    List<String> getKeys();
+
+    // Makes everything written so far durable
+    void sync() throws IOException;
+}
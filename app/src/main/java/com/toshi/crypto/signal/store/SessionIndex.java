@@ -0,0 +1,91 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto.signal.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Which devices there are sessions with for every name, and whether those sessions have
+// a sender chain, so libsignal's checks before every send are answered from memory.
+//
+// The index is kept in the session storage as one small metadata record per session,
+// written together with the session itself, and read back when the store is opened.
+/* package */ class SessionIndex {
+
+    private static final String METADATA_SUFFIX = "#meta";
+    private static final byte HAS_SENDER_CHAIN = 1;
+
+    // Name -> device id -> has a sender chain
+    private final Map<String, Map<Integer, Boolean>> sessions = new HashMap<>();
+
+    /* package */ synchronized void put(final String name, final int deviceId, final boolean hasSenderChain) {
+        Map<Integer, Boolean> devices = this.sessions.get(name);
+        if (devices == null) {
+            devices = new HashMap<>(2);
+            this.sessions.put(name, devices);
+        }
+        devices.put(deviceId, hasSenderChain);
+    }
+
+    /* package */ synchronized void remove(final String name, final int deviceId) {
+        final Map<Integer, Boolean> devices = this.sessions.get(name);
+        if (devices == null) {
+            return;
+        }
+
+        devices.remove(deviceId);
+        if (devices.isEmpty()) {
+            this.sessions.remove(name);
+        }
+    }
+
+    /* package */ synchronized boolean hasSenderChain(final String name, final int deviceId) {
+        final Map<Integer, Boolean> devices = this.sessions.get(name);
+        final Boolean hasSenderChain = devices == null ? null : devices.get(deviceId);
+        return hasSenderChain != null && hasSenderChain;
+    }
+
+    /* package */ synchronized List<Integer> getDeviceIds(final String name) {
+        final Map<Integer, Boolean> devices = this.sessions.get(name);
+        return devices == null
+                ? new ArrayList<Integer>()
+                : new ArrayList<>(devices.keySet());
+    }
+
+    /* package */ synchronized List<String> getNames() {
+        return new ArrayList<>(this.sessions.keySet());
+    }
+
+    /* package */ static String getMetadataKey(final String sessionName) {
+        return sessionName + METADATA_SUFFIX;
+    }
+
+    /* package */ static boolean isMetadataKey(final String key) {
+        return key.endsWith(METADATA_SUFFIX);
+    }
+
+    /* package */ static byte[] encodeMetadata(final boolean hasSenderChain) {
+        return new byte[] { hasSenderChain ? HAS_SENDER_CHAIN : 0 };
+    }
+
+    /* package */ static boolean decodeHasSenderChain(final byte[] metadata) {
+        return metadata.length > 0 && (metadata[0] & HAS_SENDER_CHAIN) != 0;
+    }
+}
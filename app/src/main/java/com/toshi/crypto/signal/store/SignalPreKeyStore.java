@@ -21,7 +21,6 @@ package com.toshi.crypto.signal.store;
 import android.content.Context;
 import android.support.annotation.NonNull;
 
-import com.toshi.crypto.util.ByteUtil;
 import com.toshi.util.LogUtil;
 import com.toshi.view.BaseApplication;
 
@@ -33,231 +32,348 @@ import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyStore;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class SignalPreKeyStore implements PreKeyStore, SignedPreKeyStore {
 
     public static final String PREKEY_DIRECTORY = "prekeys";
     public static final String SIGNED_PREKEY_DIRECTORY = "signed_prekeys";
 
-
+    private static final String PREKEYS_LOG            = "prekeys.log";
+    private static final String NEXT_PREKEY_ID         = PREKEY_DIRECTORY + "/next_id";
     private static final int    PLAINTEXT_VERSION      = 2;
     private static final int    CURRENT_VERSION_MARKER = 2;
-    private static final Object FILE_LOCK              = new Object();
+
+    // Shared by every instance, as the log can only be opened once
+    private static RecordStorage storage;
 
     @NonNull
-    private final Context context;
+    private final RecordStorage records;
 
     public SignalPreKeyStore() {
-        this.context = BaseApplication.get();
+        this.records = getStorage(BaseApplication.get());
     }
 
     @Override
     public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
-        synchronized (FILE_LOCK) {
-            try {
-                return new PreKeyRecord(loadSerializedRecord(getPreKeyFile(preKeyId)));
-            } catch (IOException | InvalidMessageException e) {
-                LogUtil.w(getClass(), e.getMessage());
-                throw new InvalidKeyIdException(e);
-            }
+        try {
+            return new PreKeyRecord(loadSerializedRecord(getPreKeyName(preKeyId)));
+        } catch (IOException | InvalidMessageException e) {
+            LogUtil.w(getClass(), e.getMessage());
+            throw new InvalidKeyIdException(e);
         }
     }
 
     @Override
     public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
-        synchronized (FILE_LOCK) {
+        try {
+            return new SignedPreKeyRecord(loadSerializedRecord(getSignedPreKeyName(signedPreKeyId)));
+        } catch (IOException | InvalidMessageException e) {
+            LogUtil.w(getClass(), e.getMessage());
+            throw new InvalidKeyIdException(e);
+        }
+    }
+
+    // The records that can't be loaded are left out
+    public List<PreKeyRecord> loadPreKeys(List<Integer> preKeyIds) {
+        List<String> names = new ArrayList<>(preKeyIds.size());
+        for (int preKeyId : preKeyIds) {
+            names.add(getPreKeyName(preKeyId));
+        }
+
+        List<PreKeyRecord> results = new ArrayList<>(preKeyIds.size());
+        for (byte[] serializedRecord : loadSerializedRecords(names).values()) {
             try {
-                return new SignedPreKeyRecord(loadSerializedRecord(getSignedPreKeyFile(signedPreKeyId)));
-            } catch (IOException | InvalidMessageException e) {
+                results.add(new PreKeyRecord(serializedRecord));
+            } catch (IOException e) {
                 LogUtil.w(getClass(), e.getMessage());
-                throw new InvalidKeyIdException(e);
             }
         }
+
+        return results;
     }
 
     @Override
     public List<SignedPreKeyRecord> loadSignedPreKeys() {
-        synchronized (FILE_LOCK) {
-            File                     directory = getSignedPreKeyDirectory();
-            List<SignedPreKeyRecord> results   = new LinkedList<>();
-
-            for (File signedPreKeyFile : directory.listFiles()) {
-                try {
-                    results.add(new SignedPreKeyRecord(loadSerializedRecord(signedPreKeyFile)));
-                } catch (IOException | InvalidMessageException e) {
-                    LogUtil.w(getClass(), e.getMessage());
-                }
-            }
+        List<String> names = new LinkedList<>();
+        for (String name : this.records.getKeys()) {
+            if (name.startsWith(SIGNED_PREKEY_DIRECTORY + "/")) names.add(name);
+        }
 
-            return results;
+        List<SignedPreKeyRecord> results = new LinkedList<>();
+        for (byte[] serializedRecord : loadSerializedRecords(names).values()) {
+            try {
+                results.add(new SignedPreKeyRecord(serializedRecord));
+            } catch (IOException e) {
+                LogUtil.w(getClass(), e.getMessage());
+            }
         }
+
+        return results;
     }
 
     @Override
     public void storePreKey(int preKeyId, PreKeyRecord record) {
-        synchronized (FILE_LOCK) {
-            try {
-                storeSerializedRecord(getPreKeyFile(preKeyId), record.serialize());
-            } catch (IOException e) {
-                throw new AssertionError(e);
+        try {
+            storeSerializedRecord(getPreKeyName(preKeyId), record.serialize());
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // The whole batch is written at once, together with the id the next batch starts at,
+    // so a crash can't leave the batch stored without the next id having moved past it
+    public void storePreKeys(List<PreKeyRecord> preKeys, int nextPreKeyId) {
+        Map<String, byte[]> batch = new HashMap<>(preKeys.size() + 1);
+        for (PreKeyRecord record : preKeys) {
+            batch.put(getPreKeyName(record.getId()), encodeRecord(record.serialize()));
+        }
+        batch.put(NEXT_PREKEY_ID, ByteBuffer.allocate(4).putInt(nextPreKeyId).array());
+
+        try {
+            this.records.write(batch);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // -1 until the first batch has been stored
+    public int getNextPreKeyId() {
+        try {
+            byte[] stored = this.records.get(NEXT_PREKEY_ID);
+            if (stored != null && stored.length == 4) {
+                return ByteBuffer.wrap(stored).getInt();
             }
+        } catch (IOException e) {
+            LogUtil.w(getClass(), e.getMessage());
         }
+        return -1;
     }
 
     @Override
     public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
-        synchronized (FILE_LOCK) {
-            try {
-                storeSerializedRecord(getSignedPreKeyFile(signedPreKeyId), record.serialize());
-            } catch (IOException e) {
-                throw new AssertionError(e);
-            }
+        try {
+            storeSerializedRecord(getSignedPreKeyName(signedPreKeyId), record.serialize());
+        } catch (IOException e) {
+            throw new AssertionError(e);
         }
     }
 
     @Override
     public boolean containsPreKey(int preKeyId) {
-        File record = getPreKeyFile(preKeyId);
-        return record.exists();
+        return this.records.contains(getPreKeyName(preKeyId));
     }
 
     @Override
     public boolean containsSignedPreKey(int signedPreKeyId) {
-        File record = getSignedPreKeyFile(signedPreKeyId);
-        return record.exists();
+        return this.records.contains(getSignedPreKeyName(signedPreKeyId));
     }
 
 
     @Override
     public void removePreKey(int preKeyId) {
-        File record = getPreKeyFile(preKeyId);
-        record.delete();
+        removeRecord(getPreKeyName(preKeyId));
     }
 
     @Override
     public void removeSignedPreKey(int signedPreKeyId) {
-        File record = getSignedPreKeyFile(signedPreKeyId);
-        record.delete();
+        removeRecord(getSignedPreKeyName(signedPreKeyId));
     }
 
     public void migrateRecords() {
-        synchronized (FILE_LOCK) {
-            File preKeyRecords = getPreKeyDirectory();
-
-            for (File preKeyRecord : preKeyRecords.listFiles()) {
-                try {
-                    int          preKeyId = Integer.parseInt(preKeyRecord.getName());
-                    PreKeyRecord record   = loadPreKey(preKeyId);
-
-                    storePreKey(preKeyId, record);
-                } catch (InvalidKeyIdException | NumberFormatException e) {
-                    LogUtil.w(getClass(), e.getMessage());
-                }
+        List<String> names = this.records.getKeys();
+        names.remove(NEXT_PREKEY_ID);
+
+        Map<String, byte[]> batch = new HashMap<>(names.size());
+        for (Map.Entry<String, byte[]> record : loadSerializedRecords(names).entrySet()) {
+            batch.put(record.getKey(), encodeRecord(record.getValue()));
+        }
+
+        try {
+            this.records.write(batch);
+        } catch (IOException e) {
+            LogUtil.w(getClass(), e.getMessage());
+        }
+    }
+
+    private static synchronized RecordStorage getStorage(Context context) {
+        if (storage != null) {
+            return storage;
+        }
+
+        getRecordsDirectory(context, PREKEY_DIRECTORY);
+        getRecordsDirectory(context, SIGNED_PREKEY_DIRECTORY);
+        FileRecordStorage files = new FileRecordStorage(context.getFilesDir(), PREKEY_DIRECTORY, SIGNED_PREKEY_DIRECTORY);
+
+        try {
+            LogRecordStorage log = new LogRecordStorage(new File(context.getFilesDir(), PREKEYS_LOG));
+            migrateRecordFiles(files, log);
+            storage = log;
+        } catch (IOException e) {
+            LogUtil.exception(SignalPreKeyStore.class, "Unable to open the prekey log, using prekey files", e);
+            storage = files;
+        }
+        return storage;
+    }
+
+    // Moves records from the one file per record layout into the log. The files are only
+    // deleted once the log has been synced. The index.dat files that PreKeyUtil keeps in
+    // the same directories aren't records, and are left where they are.
+    private static void migrateRecordFiles(FileRecordStorage files, RecordStorage log) throws IOException {
+        List<String> names = new LinkedList<>();
+
+        for (String name : files.getKeys()) {
+            if (name.equals(NEXT_PREKEY_ID)) {
+                names.add(name);
+                continue;
             }
 
-            File signedPreKeyRecords = getSignedPreKeyDirectory();
+            try {
+                Integer.parseInt(name.substring(name.indexOf('/') + 1));
+                names.add(name);
+            } catch (NumberFormatException e) {
+                // Not a record
+            }
+        }
 
-            for (File signedPreKeyRecord : signedPreKeyRecords.listFiles()) {
-                try {
-                    int                signedPreKeyId = Integer.parseInt(signedPreKeyRecord.getName());
-                    SignedPreKeyRecord record         = loadSignedPreKey(signedPreKeyId);
+        if (names.isEmpty()) {
+            return;
+        }
 
-                    storeSignedPreKey(signedPreKeyId, record);
-                } catch (InvalidKeyIdException | NumberFormatException e) {
-                    LogUtil.w(getClass(), e.getMessage());
-                }
+        for (String name : names) {
+            byte[] record = files.get(name);
+            if (record != null) {
+                log.put(name, record);
             }
         }
+        log.sync();
+
+        for (String name : names) {
+            files.remove(name);
+        }
+        LogUtil.i(SignalPreKeyStore.class, "Migrated " + names.size() + " prekeys to the prekey log");
+    }
+
+    private byte[] loadSerializedRecord(String name) throws IOException, InvalidMessageException {
+        byte[] stored = this.records.get(name);
+        if (stored == null) {
+            throw new InvalidMessageException("No such record: " + name);
+        }
+
+        return decodeRecord(stored);
     }
 
-    private byte[] loadSerializedRecord(File recordFile) throws IOException, InvalidMessageException {
-        FileInputStream fin           = new FileInputStream(recordFile);
-        int             recordVersion = readInteger(fin);
+    private byte[] decodeRecord(byte[] stored) throws IOException {
+        ByteBuffer in            = ByteBuffer.wrap(stored);
+        int        recordVersion = readInteger(in);
 
         if (recordVersion > CURRENT_VERSION_MARKER) {
             throw new AssertionError("Invalid version: " + recordVersion);
         }
 
-        byte[] serializedRecord = readBlob(fin);
+        byte[] serializedRecord = readBlob(in);
 
         if (recordVersion < PLAINTEXT_VERSION) {
             throw new AssertionError("Migration didn't happen!");
         }
 
-        fin.close();
         return serializedRecord;
     }
 
-    private void storeSerializedRecord(File file, byte[] serialized) throws IOException {
-        RandomAccessFile recordFile = new RandomAccessFile(file, "rw");
-        FileChannel      out        = recordFile.getChannel();
+    // Every record is read at once; those that are missing or can't be read are left out
+    private Map<String, byte[]> loadSerializedRecords(List<String> names) {
+        Map<String, byte[]> stored;
+        try {
+            stored = this.records.read(names);
+        } catch (IOException e) {
+            LogUtil.w(getClass(), e.getMessage());
+            return new HashMap<>();
+        }
 
-        out.position(0);
-        writeInteger(CURRENT_VERSION_MARKER, out);
-        writeBlob(serialized, out);
-        out.truncate(out.position());
-        recordFile.close();
+        Map<String, byte[]> results = new HashMap<>(stored.size());
+        for (Map.Entry<String, byte[]> record : stored.entrySet()) {
+            try {
+                results.put(record.getKey(), decodeRecord(record.getValue()));
+            } catch (IOException e) {
+                LogUtil.w(getClass(), e.getMessage());
+            }
+        }
+        return results;
     }
 
-    private File getPreKeyFile(int preKeyId) {
-        return new File(getPreKeyDirectory(), String.valueOf(preKeyId));
+    private void storeSerializedRecord(String name, byte[] serialized) throws IOException {
+        this.records.put(name, encodeRecord(serialized));
     }
 
-    private File getSignedPreKeyFile(int signedPreKeyId) {
-        return new File(getSignedPreKeyDirectory(), String.valueOf(signedPreKeyId));
+    private byte[] encodeRecord(byte[] serialized) {
+        ByteBuffer out = ByteBuffer.allocate(8 + serialized.length);
+        writeInteger(CURRENT_VERSION_MARKER, out);
+        writeBlob(serialized, out);
+        return out.array();
+    }
+
+    private void removeRecord(String name) {
+        try {
+            this.records.remove(name);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
     }
 
-    private File getPreKeyDirectory() {
-        return getRecordsDirectory(PREKEY_DIRECTORY);
+    // Records are named after the file they used to be kept in, relative to the files directory
+    private String getPreKeyName(int preKeyId) {
+        return PREKEY_DIRECTORY + "/" + preKeyId;
     }
 
-    private File getSignedPreKeyDirectory() {
-        return getRecordsDirectory(SIGNED_PREKEY_DIRECTORY);
+    private String getSignedPreKeyName(int signedPreKeyId) {
+        return SIGNED_PREKEY_DIRECTORY + "/" + signedPreKeyId;
     }
 
-    private File getRecordsDirectory(String directoryName) {
+    private static File getRecordsDirectory(Context context, String directoryName) {
         File directory = new File(context.getFilesDir(), directoryName);
 
         if (!directory.exists()) {
             if (!directory.mkdirs()) {
-                LogUtil.w(getClass(), "PreKey directory creation failed!");
+                LogUtil.w(SignalPreKeyStore.class, "PreKey directory creation failed!");
             }
         }
 
         return directory;
     }
 
-    private byte[] readBlob(FileInputStream in) throws IOException {
-        int length       = readInteger(in);
-        byte[] blobBytes = new byte[length];
+    private byte[] readBlob(ByteBuffer in) throws IOException {
+        int length = readInteger(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid record length: " + length);
+        }
 
-        in.read(blobBytes, 0, blobBytes.length);
+        byte[] blobBytes = new byte[length];
+        in.get(blobBytes);
         return blobBytes;
     }
 
-    private void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
+    private void writeBlob(byte[] blobBytes, ByteBuffer out) {
         writeInteger(blobBytes.length, out);
-        out.write(ByteBuffer.wrap(blobBytes));
+        out.put(blobBytes);
     }
 
-    private int readInteger(FileInputStream in) throws IOException {
-        byte[] integer = new byte[4];
-        in.read(integer, 0, integer.length);
-        return ByteUtil.byteArrayToInt(integer);
+    private int readInteger(ByteBuffer in) throws IOException {
+        if (in.remaining() < 4) {
+            throw new IOException("Truncated record");
+        }
+        return in.getInt();
     }
 
-    private void writeInteger(int value, FileChannel out) throws IOException {
-        byte[] valueBytes = ByteUtil.intToByteArray(value);
-        out.write(ByteBuffer.wrap(valueBytes));
+    private void writeInteger(int value, ByteBuffer out) {
+        out.putInt(value);
     }
 
 
 
-}
\ No newline at end of file
+}
@@ -21,7 +21,6 @@ import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.toshi.crypto.util.ByteUtil;
 import com.toshi.util.LogUtil;
 import com.toshi.view.BaseApplication;
 
@@ -32,20 +31,49 @@ import org.whispersystems.libsignal.state.SessionStore;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
 
 public class SignalSessionStore implements SessionStore {
 
     private static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
-    private static final Object FILE_LOCK             = new Object();
+    private static final String SESSIONS_LOG          = "sessions.log";
+    private static final int    LOCK_STRIPES          = 16;
+    private static final int    CACHE_SIZE            = 64;
+
+    // Shared by every instance, as the log can only be opened once
+    private static RecordStorage storage;
+    private static SessionIndex  sessionIndex;
+
+    // Each session is guarded by one of a fixed set of locks, chosen by its name,
+    // so sessions with different peers can be loaded and stored at the same time.
+    private static final Object[] SESSION_LOCKS = new Object[LOCK_STRIPES];
+    static {
+        for (int i = 0; i < SESSION_LOCKS.length; i++) {
+            SESSION_LOCKS[i] = new Object();
+        }
+    }
+
+    // The serialized records of recently used sessions, by name, as last written to storage.
+    // Records are cached serialized because libsignal changes a loaded record before storing
+    // it, and may not store it at all if decryption fails, so every load needs its own copy.
+    private static final Map<String, byte[]> SESSION_CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, byte[]>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, byte[]> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
 
     private static final int SINGLE_STATE_VERSION   = 1;
     private static final int ARCHIVE_STATES_VERSION = 2;
@@ -53,74 +81,96 @@ public class SignalSessionStore implements SessionStore {
     private static final int CURRENT_VERSION        = 3;
     private static final int DEFAULT_DEVICE_ID = 1;
 
-    @NonNull  private final Context context;
+    @NonNull  private final RecordStorage sessions;
+    @NonNull  private final SessionIndex  index;
 
     public SignalSessionStore() {
-        this.context = BaseApplication.get();
+        this.sessions = getStorage(BaseApplication.get());
+        this.index = getSessionIndex(this.sessions);
     }
 
     @Override
     public SessionRecord loadSession(@NonNull final SignalProtocolAddress address) {
-        synchronized (FILE_LOCK) {
-            try {
-                FileInputStream in            = new FileInputStream(getSessionFile(address));
-                int             versionMarker = readInteger(in);
+        final byte[] serialized = loadSerializedSession(address);
+        if (serialized == null) {
+            return new SessionRecord();
+        }
 
-                if (versionMarker > CURRENT_VERSION) {
-                    throw new AssertionError("Unknown version: " + versionMarker);
-                }
+        try {
+            return new SessionRecord(serialized);
+        } catch (final IOException e) {
+            LogUtil.w(getClass(), "Unable to parse session information.");
+            return new SessionRecord();
+        }
+    }
 
-                byte[] serialized = readBlob(in);
-                in.close();
+    private @Nullable byte[] loadSerializedSession(@NonNull final SignalProtocolAddress address) {
+        final String sessionName = getSessionName(address);
+        synchronized (getLock(sessionName)) {
+            final byte[] cached = SESSION_CACHE.get(sessionName);
+            if (cached != null) {
+                return cached;
+            }
 
-                if (versionMarker < PLAINTEXT_VERSION) {
-                    throw new AssertionError("Session didn't get migrated: (" + versionMarker + "," + address + ")");
+            try {
+                final byte[] stored = this.sessions.get(sessionName);
+                if (stored == null) {
+                    return null;
                 }
 
-                if (versionMarker == SINGLE_STATE_VERSION) {
-                    SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
-                    SessionState     sessionState     = new SessionState(sessionStructure);
-                    return new SessionRecord(sessionState);
-                } else if (versionMarker >= ARCHIVE_STATES_VERSION) {
-                    return new SessionRecord(serialized);
-                } else {
-                    throw new AssertionError("Unknown version: " + versionMarker);
-                }
+                final byte[] serialized = decodeSession(sessionName, stored);
+                SESSION_CACHE.put(sessionName, serialized);
+                return serialized;
             } catch (final IOException e) {
-                LogUtil.w(getClass(), "No existing session information found.");
-                return new SessionRecord();
+                LogUtil.w(getClass(), "Unable to read session information.");
+                return null;
             }
         }
     }
 
     @Override
     public void storeSession(@NonNull final SignalProtocolAddress address, @NonNull final SessionRecord record) {
-        synchronized (FILE_LOCK) {
+        final String sessionName = getSessionName(address);
+        final byte[] serialized = record.serialize();
+        final boolean hasSenderChain = record.getSessionState().hasSenderChain();
+        synchronized (getLock(sessionName)) {
             try {
-                RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(address), "rw");
-                FileChannel      out          = sessionFile.getChannel();
-
-                out.position(0);
-                writeInteger(CURRENT_VERSION, out);
-                writeBlob(record.serialize(), out);
-                out.truncate(out.position());
-
-                sessionFile.close();
+                final Map<String, byte[]> records = new HashMap<>(2);
+                records.put(sessionName, encodeSession(serialized));
+                records.put(SessionIndex.getMetadataKey(sessionName), SessionIndex.encodeMetadata(hasSenderChain));
+                this.sessions.write(records);
             } catch (IOException e) {
+                SESSION_CACHE.remove(sessionName);
                 throw new AssertionError(e);
             }
+
+            // Written through, so the cache never holds a session that isn't stored
+            SESSION_CACHE.put(sessionName, serialized);
+            this.index.put(address.getName(), address.getDeviceId(), hasSenderChain);
         }
     }
 
     @Override
     public boolean containsSession(final SignalProtocolAddress address) {
-        return getSessionFile(address).exists() &&
-                loadSession(address).getSessionState().hasSenderChain();
+        return this.index.hasSenderChain(address.getName(), address.getDeviceId());
     }
 
     @Override
     public void deleteSession(final SignalProtocolAddress address) {
-        getSessionFile(address).delete();
+        final String sessionName = getSessionName(address);
+        synchronized (getLock(sessionName)) {
+            try {
+                final Map<String, byte[]> records = new HashMap<>(2);
+                records.put(sessionName, null);
+                records.put(SessionIndex.getMetadataKey(sessionName), null);
+                this.sessions.write(records);
+            } catch (final IOException e) {
+                throw new AssertionError(e);
+            }
+            // Only once the session is gone from storage, so the index never disagrees with it
+            SESSION_CACHE.remove(sessionName);
+            this.index.remove(address.getName(), address.getDeviceId());
+        }
     }
 
     @Override
@@ -142,75 +192,143 @@ public class SignalSessionStore implements SessionStore {
     }
 
     private List<String> getAllSessions() {
-        final List<String> results = new LinkedList<>();
-        final File parent = getSessionDirectory();
-        final String[] children = parent.list();
+        return this.index.getNames();
+    }
 
-        if (children == null) {
-            return results;
-        }
+    @Override
+    public List<Integer> getSubDeviceSessions(final String name) {
+        final String recipientId = name.split(":")[0];
+
+        final List<Integer> results = new LinkedList<>();
 
-        for (final String child : children) {
-            final String[] parts = child.split("[.]", 2);
-            results.add(parts[0]);
+        for (final int deviceId : this.index.getDeviceIds(recipientId)) {
+            if (deviceId != SignalServiceAddress.DEFAULT_DEVICE_ID) {
+                results.add(deviceId);
+            }
         }
 
         return results;
     }
 
-    @Override
-    public List<Integer> getSubDeviceSessions(final String name) {
-        final String recipientId = name.split(":")[0];
 
-        final List<Integer> results = new LinkedList<>();
-        final File parent = getSessionDirectory();
-        final String[] children = parent.list();
 
-        if (children == null) {
-            return results;
+    public void migrateSessions() {
+        for (final String name : this.index.getNames()) {
+            for (final int deviceId : this.index.getDeviceIds(name)) {
+                SignalProtocolAddress address = new SignalProtocolAddress(name, deviceId);
+
+                synchronized (getLock(getSessionName(address))) {
+                    SessionRecord sessionRecord = loadSession(address);
+                    storeSession(address, sessionRecord);
+                }
+            }
         }
+    }
 
-        for (final String child : children) {
-            final String[] parts = child.split("[.]", 2);
-            final String sessionRecipientId = parts[0];
+    private static synchronized RecordStorage getStorage(final Context context) {
+        if (storage != null) {
+            return storage;
+        }
 
-            if (sessionRecipientId.equals(recipientId) && parts.length > 1) {
-                results.add(Integer.parseInt(parts[1]));
+        final File sessionDirectory = new File(context.getFilesDir(), SESSIONS_DIRECTORY_V2);
+        try {
+            final LogRecordStorage log = new LogRecordStorage(new File(context.getFilesDir(), SESSIONS_LOG));
+            if (sessionDirectory.exists()) {
+                migrateSessionFiles(new FileRecordStorage(sessionDirectory), log);
+                sessionDirectory.delete();
             }
+            storage = log;
+        } catch (final IOException e) {
+            LogUtil.exception(SignalSessionStore.class, "Unable to open the session log, using session files", e);
+            storage = new FileRecordStorage(getSessionDirectory(context));
         }
+        return storage;
+    }
 
-        return results;
+    private static synchronized SessionIndex getSessionIndex(final RecordStorage storage) {
+        if (sessionIndex == null) {
+            sessionIndex = loadSessionIndex(storage);
+        }
+        return sessionIndex;
     }
 
+    // Reads the metadata record of every session. Sessions that don't have one yet, because
+    // they were stored before there was an index, are parsed once and get one written.
+    private static SessionIndex loadSessionIndex(final RecordStorage storage) {
+        final SessionIndex index = new SessionIndex();
+        final Set<String> keys = new HashSet<>(storage.getKeys());
 
+        for (final String key : keys) {
+            if (SessionIndex.isMetadataKey(key)) {
+                continue;
+            }
 
-    public void migrateSessions() {
-        synchronized (FILE_LOCK) {
-            File directory = getSessionDirectory();
+            final SignalProtocolAddress address = getAddressName(key);
+            final String metadataKey = SessionIndex.getMetadataKey(key);
+            try {
+                final byte[] metadata = keys.contains(metadataKey) ? storage.get(metadataKey) : null;
+                final boolean hasSenderChain;
+                if (metadata != null) {
+                    hasSenderChain = SessionIndex.decodeHasSenderChain(metadata);
+                } else {
+                    hasSenderChain = hasSenderChain(key, storage.get(key));
+                    storage.put(metadataKey, SessionIndex.encodeMetadata(hasSenderChain));
+                }
+                index.put(address.getName(), address.getDeviceId(), hasSenderChain);
+            } catch (final IOException e) {
+                LogUtil.w(SignalSessionStore.class, "Unable to index session " + key);
+                index.put(address.getName(), address.getDeviceId(), false);
+            }
+        }
 
-            for (File session : directory.listFiles()) {
-                if (session.isFile()) {
-                    SignalProtocolAddress address = getAddressName(session);
+        return index;
+    }
 
-                    if (address != null) {
-                        SessionRecord sessionRecord = loadSession(address);
-                        storeSession(address, sessionRecord);
-                    }
-                }
+    private static boolean hasSenderChain(final String sessionName, @Nullable final byte[] stored) {
+        if (stored == null) {
+            return false;
+        }
+
+        try {
+            return new SessionRecord(decodeSession(sessionName, stored)).getSessionState().hasSenderChain();
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    // Moves sessions from the one file per session layout into the log. The files are only
+    // deleted once the log has been synced, and if that doesn't happen the next migration
+    // overwrites the same sessions with the same records.
+    private static void migrateSessionFiles(final FileRecordStorage files, final RecordStorage log) throws IOException {
+        final List<String> sessionNames = files.getKeys();
+        if (sessionNames.isEmpty()) {
+            return;
+        }
+
+        for (final String sessionName : sessionNames) {
+            final byte[] record = files.get(sessionName);
+            if (record != null) {
+                log.put(sessionName, record);
             }
         }
+        log.sync();
+
+        for (final String sessionName : sessionNames) {
+            files.remove(sessionName);
+        }
+        LogUtil.i(SignalSessionStore.class, "Migrated " + sessionNames.size() + " sessions to the session log");
     }
 
-    private File getSessionFile(final SignalProtocolAddress address) {
-        return new File(getSessionDirectory(), getSessionName(address));
+    private Object getLock(final String sessionName) {
+        return SESSION_LOCKS[(sessionName.hashCode() & Integer.MAX_VALUE) % SESSION_LOCKS.length];
     }
 
-    private File getSessionDirectory() {
+    private static File getSessionDirectory(final Context context) {
         File directory = new File(context.getFilesDir(), SESSIONS_DIRECTORY_V2);
 
         if (!directory.exists()) {
             if (!directory.mkdirs()) {
-                LogUtil.w(getClass(), "Session directory creation failed!");
+                LogUtil.w(SignalSessionStore.class, "Session directory creation failed!");
             }
         }
 
@@ -224,8 +342,8 @@ public class SignalSessionStore implements SessionStore {
         return recipientId + (deviceId == SignalServiceAddress.DEFAULT_DEVICE_ID ? "" : "." + deviceId);
     }
 
-    private @Nullable SignalProtocolAddress getAddressName(final File sessionFile) {
-        final String[] parts = sessionFile.getName().split("[.]");
+    private static SignalProtocolAddress getAddressName(final String sessionName) {
+        final String[] parts = sessionName.split("[.]");
         final String recipientId = parts[0];
 
         final int deviceId
@@ -236,28 +354,63 @@ public class SignalSessionStore implements SessionStore {
         return new SignalProtocolAddress(recipientId, deviceId);
     }
 
-    private byte[] readBlob(final FileInputStream in) throws IOException {
-        int length       = readInteger(in);
-        byte[] blobBytes = new byte[length];
+    private static byte[] decodeSession(final String sessionName, final byte[] stored) throws IOException {
+        final ByteBuffer in            = ByteBuffer.wrap(stored);
+        final int        versionMarker = readInteger(in);
+
+        if (versionMarker > CURRENT_VERSION) {
+            throw new AssertionError("Unknown version: " + versionMarker);
+        }
+
+        byte[] serialized = readBlob(in);
 
-        in.read(blobBytes, 0, blobBytes.length);
+        if (versionMarker < PLAINTEXT_VERSION) {
+            throw new AssertionError("Session didn't get migrated: (" + versionMarker + "," + sessionName + ")");
+        }
+
+        if (versionMarker == SINGLE_STATE_VERSION) {
+            SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
+            SessionState     sessionState     = new SessionState(sessionStructure);
+            serialized = new SessionRecord(sessionState).serialize();
+        } else if (versionMarker < ARCHIVE_STATES_VERSION) {
+            throw new AssertionError("Unknown version: " + versionMarker);
+        }
+
+        return serialized;
+    }
+
+    private static byte[] encodeSession(final byte[] serialized) {
+        final ByteBuffer out = ByteBuffer.allocate(8 + serialized.length);
+        writeInteger(CURRENT_VERSION, out);
+        writeBlob(serialized, out);
+        return out.array();
+    }
+
+    private static byte[] readBlob(final ByteBuffer in) throws IOException {
+        int length = readInteger(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid session length: " + length);
+        }
+
+        byte[] blobBytes = new byte[length];
+        in.get(blobBytes);
         return blobBytes;
     }
 
-    private void writeBlob(final byte[] blobBytes, final FileChannel out) throws IOException {
+    private static void writeBlob(final byte[] blobBytes, final ByteBuffer out) {
         writeInteger(blobBytes.length, out);
-        out.write(ByteBuffer.wrap(blobBytes));
+        out.put(blobBytes);
     }
 
-    private int readInteger(final FileInputStream in) throws IOException {
-        byte[] integer = new byte[4];
-        in.read(integer, 0, integer.length);
-        return ByteUtil.byteArrayToInt(integer);
+    private static int readInteger(final ByteBuffer in) throws IOException {
+        if (in.remaining() < 4) {
+            throw new IOException("Truncated session record");
+        }
+        return in.getInt();
     }
 
-    private void writeInteger(final int value, final FileChannel out) throws IOException {
-        byte[] valueBytes = ByteUtil.intToByteArray(value);
-        out.write(ByteBuffer.wrap(valueBytes));
+    private static void writeInteger(final int value, final ByteBuffer out) {
+        out.putInt(value);
     }
 
 }
\ No newline at end of file
@@ -76,9 +76,12 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
 
 public class PreKeyUtil {
 
@@ -86,22 +89,40 @@ public class PreKeyUtil {
 
     private static final int BATCH_SIZE = 100;
 
-    public static List<PreKeyRecord> generatePreKeys(Context context) {
-        PreKeyStore preKeyStore    = new SignalPreKeyStore();
-        List<PreKeyRecord> records        = new LinkedList<>();
-        int                preKeyIdOffset = getNextPreKeyId(context);
+    // Synchronized so that batches generated at the same time don't get the same ids
+    public static synchronized List<PreKeyRecord> generatePreKeys(Context context) {
+        SignalPreKeyStore  preKeyStore    = new SignalPreKeyStore();
+        int                preKeyIdOffset = getNextPreKeyId(context, preKeyStore);
+        List<PreKeyRecord> records        = generatePreKeyRecords(preKeyIdOffset, BATCH_SIZE);
+
+        preKeyStore.storePreKeys(records, (preKeyIdOffset + BATCH_SIZE + 1) % Medium.MAX_VALUE);
+        deleteLegacyPreKeyIndex(context);
+        return records;
+    }
 
-        for (int i=0;i<BATCH_SIZE;i++) {
-            int          preKeyId = (preKeyIdOffset + i) % Medium.MAX_VALUE;
-            ECKeyPair    keyPair  = Curve.generateKeyPair();
-            PreKeyRecord record   = new PreKeyRecord(preKeyId, keyPair);
+    // The key pairs are generated in one run of consecutive ids per core
+    private static List<PreKeyRecord> generatePreKeyRecords(final int preKeyIdOffset, final int count) {
+        final PreKeyRecord[] records      = new PreKeyRecord[count];
+        final int            numberOfRuns = Math.min(count, Runtime.getRuntime().availableProcessors());
+        final int            runLength    = (count + numberOfRuns - 1) / numberOfRuns;
 
-            preKeyStore.storePreKey(preKeyId, record);
-            records.add(record);
-        }
+        Observable.range(0, numberOfRuns)
+                .flatMap(run -> Observable.fromCallable(() -> generatePreKeyRecordsInto(records, preKeyIdOffset, run * runLength, runLength))
+                        .subscribeOn(Schedulers.computation()))
+                .toBlocking()
+                .lastOrDefault(null);
 
-        setNextPreKeyId(context, (preKeyIdOffset + BATCH_SIZE + 1) % Medium.MAX_VALUE);
-        return records;
+        return Arrays.asList(records);
+    }
+
+    private static Void generatePreKeyRecordsInto(final PreKeyRecord[] records, final int preKeyIdOffset, final int start, final int length) {
+        final int end = Math.min(records.length, start + length);
+        for (int i = start; i < end; i++) {
+            int       preKeyId = (preKeyIdOffset + i) % Medium.MAX_VALUE;
+            ECKeyPair keyPair  = Curve.generateKeyPair();
+            records[i] = new PreKeyRecord(preKeyId, keyPair);
+        }
+        return null;
     }
 
     public static SignedPreKeyRecord generateSignedPreKey(Context context, IdentityKeyPair identityKeyPair, boolean active)
@@ -146,17 +167,6 @@ public class PreKeyUtil {
         return record;
     }
 
-    private static synchronized void setNextPreKeyId(Context context, int id) {
-        try {
-            File nextFile = new File(getPreKeysDirectory(context), PreKeyIndex.FILE_NAME);
-            FileOutputStream fout     = new FileOutputStream(nextFile);
-            fout.write(JsonUtils.toJson(new PreKeyIndex(id)).getBytes());
-            fout.close();
-        } catch (IOException e) {
-            LogUtil.w("PreKeyUtil", e.toString());
-        }
-    }
-
     private static synchronized void setNextSignedPreKeyId(Context context, int id) {
         try {
             SignedPreKeyIndex index = getSignedPreKeyIndex(context).or(new SignedPreKeyIndex());
@@ -186,7 +196,14 @@ public class PreKeyUtil {
         else                   return -1;
     }
 
-    private static synchronized int getNextPreKeyId(Context context) {
+    // The next id is stored with the prekeys; the index file is only read until the
+    // first batch has been stored that way
+    private static synchronized int getNextPreKeyId(Context context, SignalPreKeyStore preKeyStore) {
+        int nextPreKeyId = preKeyStore.getNextPreKeyId();
+        if (nextPreKeyId != -1) {
+            return nextPreKeyId;
+        }
+
         try {
             File nextFile = new File(getPreKeysDirectory(context), PreKeyIndex.FILE_NAME);
 
@@ -204,6 +221,13 @@ public class PreKeyUtil {
         }
     }
 
+    private static void deleteLegacyPreKeyIndex(Context context) {
+        File nextFile = new File(getPreKeysDirectory(context), PreKeyIndex.FILE_NAME);
+        if (nextFile.exists() && !nextFile.delete()) {
+            LogUtil.w("PreKeyUtil", "Unable to delete " + nextFile);
+        }
+    }
+
     private static synchronized int getNextSignedPreKeyId(Context context) {
         try {
             File nextFile = new File(getSignedPreKeysDirectory(context), SignedPreKeyIndex.FILE_NAME);
@@ -271,10 +295,6 @@ public class PreKeyUtil {
         private int nextPreKeyId;
 
         public PreKeyIndex() {}
-
-        public PreKeyIndex(int nextPreKeyId) {
-            this.nextPreKeyId = nextPreKeyId;
-        }
     }
 
     private static class SignedPreKeyIndex {
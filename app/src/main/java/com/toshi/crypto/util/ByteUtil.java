@@ -20,8 +20,6 @@ package com.toshi.crypto.util;
 
 import com.toshi.crypto.db.ByteArrayWrapper;
 
-import org.spongycastle.util.encoders.Hex;
-
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
@@ -180,17 +178,17 @@ public class ByteUtil {
 
     /**
      * Convert a byte-array into a hex String.<br>
-     * Works similar to {@link Hex#toHexString}
+     * Works similar to {@link HexCodec#encode(byte[])}
      * but allows for <code>null</code>
      *
      * @param data - byte-array to convert to a hex-string
      * @return hex representation of the data.<br>
      *      Returns an empty String if the input is <code>null</code>
      *
-     * @see Hex#toHexString
+     * @see HexCodec#encode(byte[])
      */
     public static String toHexString(byte[] data) {
-        return data == null ? "" : Hex.toHexString(data);
+        return data == null ? "" : HexCodec.encode(data);
     }
 
     /**
@@ -203,14 +201,12 @@ public class ByteUtil {
      * @return hex representation of the data, zero padded to desired size.<br>
      */
     public static String toZeroPaddedHexString(final byte[] data, final int size) {
-        final String hex = toHexString(data);
-        final StringBuffer sb = new StringBuffer("");
-        final int requiredPadding = size - hex.length();
-        while (sb.length() < requiredPadding) {
-            sb.append("0");
-        }
-        sb.append(hex);
-        return sb.toString();
+        final int dataLength = data == null ? 0 : data.length;
+        final int requiredPadding = Math.max(0, size - 2 * dataLength);
+        final char[] chars = new char[requiredPadding + 2 * dataLength];
+        Arrays.fill(chars, 0, requiredPadding, '0');
+        if (data != null) HexCodec.encode(data, 0, dataLength, chars, requiredPadding);
+        return new String(chars);
     }
 
     /**
@@ -290,9 +286,7 @@ public class ByteUtil {
     }
 
     public static String oneByteToHexString(byte value) {
-        String retVal = Integer.toString(value & 0xFF, 16);
-        if (retVal.length() == 1) retVal = "0" + retVal;
-        return retVal;
+        return HexCodec.encode(new byte[] {value});
     }
 
     /**
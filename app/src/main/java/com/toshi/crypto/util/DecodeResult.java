@@ -18,8 +18,6 @@
 package com.toshi.crypto.util;
 
 
-import org.spongycastle.util.encoders.Hex;
-
 import java.io.Serializable;
 
 @SuppressWarnings("serial")
@@ -49,7 +47,7 @@ public class DecodeResult implements Serializable {
         if (decoded instanceof String) {
             return (String) decoded;
         } else if (decoded instanceof byte[]) {
-            return Hex.toHexString((byte[]) decoded);
+            return HexCodec.encode((byte[]) decoded);
         } else if (decoded instanceof Object[]) {
             String result = "";
             for (Object item : (Object[]) decoded) {
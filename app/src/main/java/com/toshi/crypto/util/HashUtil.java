@@ -23,20 +23,86 @@ import com.toshi.crypto.cryptohash.Keccak256;
 import org.spongycastle.util.Arrays;
 import org.whispersystems.signalservice.internal.util.Base64;
 
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
 public class HashUtil {
 
+    public static final int SHA3_LENGTH = 32;
+    private static final int BUFFER_COPY_SIZE = 1024;
+
+    // Keccak256 keeps its state and block buffers between hashes, so every thread
+    // reuses a single instance instead of allocating a new one for each hash.
+    private static final ThreadLocal<Keccak256> KECCAK = new ThreadLocal<Keccak256>() {
+        @Override
+        protected Keccak256 initialValue() {
+            return new Keccak256();
+        }
+    };
+
+    // Used to hash direct ByteBuffers, which don't expose a backing array
+    private static final ThreadLocal<byte[]> COPY_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_COPY_SIZE];
+        }
+    };
+
     public static byte[] sha3omit12(byte[] input) {
-        byte[] hash = sha3(input);
+        return sha3omit12(input, 0, input.length);
+    }
+
+    public static byte[] sha3omit12(final byte[] input, final int offset, final int length) {
+        final byte[] hash = sha3(input, offset, length);
         return Arrays.copyOfRange(hash, 12, hash.length);
     }
 
     public static byte[] sha3(byte[] input) {
-        Keccak256 digest = new Keccak256();
-        digest.update(input);
-        return digest.digest();
+        return sha3(input, 0, input.length);
+    }
+
+    public static byte[] sha3(final byte[] input, final int offset, final int length) {
+        final byte[] hash = new byte[SHA3_LENGTH];
+        sha3(input, offset, length, hash, 0);
+        return hash;
+    }
+
+    // Writes the 32 byte hash into output at outputOffset, without allocating
+    public static void sha3(final byte[] input, final int offset, final int length, final byte[] output, final int outputOffset) {
+        final Keccak256 digest = getKeccak();
+        digest.update(input, offset, length);
+        digest.digest(output, outputOffset, SHA3_LENGTH);
+    }
+
+    // Hashes the remaining bytes of input, and leaves its position at its limit
+    public static byte[] sha3(final ByteBuffer input) {
+        final byte[] hash = new byte[SHA3_LENGTH];
+        sha3(input, hash, 0);
+        return hash;
+    }
+
+    public static void sha3(final ByteBuffer input, final byte[] output, final int outputOffset) {
+        final Keccak256 digest = getKeccak();
+        if (input.hasArray()) {
+            digest.update(input.array(), input.arrayOffset() + input.position(), input.remaining());
+            input.position(input.limit());
+        } else {
+            final byte[] buffer = COPY_BUFFER.get();
+            while (input.hasRemaining()) {
+                final int length = Math.min(buffer.length, input.remaining());
+                input.get(buffer, 0, length);
+                digest.update(buffer, 0, length);
+            }
+        }
+        digest.digest(output, outputOffset, SHA3_LENGTH);
+    }
+
+    private static Keccak256 getKeccak() {
+        final Keccak256 digest = KECCAK.get();
+        // Clears anything left behind if a previous hash on this thread was interrupted
+        digest.reset();
+        return digest;
     }
 
     public static String getSecret(final int size) {
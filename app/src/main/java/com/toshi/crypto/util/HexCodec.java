@@ -0,0 +1,118 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.toshi.crypto.util;
+
+
+import java.util.Arrays;
+
+// Hex encoding and decoding through lookup tables. The encoders can write into a caller's
+// char[], the decoders into a caller's byte[], and both accept a range of their input,
+// so a "0x" prefix is skipped without copying the rest of the string.
+public class HexCodec {
+
+    public static final String PREFIX = "0x";
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    private static final int INVALID = -1;
+
+    // The value of each ASCII character as a hex digit, or INVALID
+    private static final byte[] DIGIT_VALUES = new byte[128];
+    static {
+        Arrays.fill(DIGIT_VALUES, (byte) INVALID);
+        for (int i = 0; i < 10; i++) {
+            DIGIT_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            DIGIT_VALUES['a' + i] = (byte) (10 + i);
+            DIGIT_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private HexCodec() {}
+
+    public static String encode(final byte[] data) {
+        return encode(data, 0, data.length);
+    }
+
+    public static String encode(final byte[] data, final int offset, final int length) {
+        final char[] chars = new char[2 * length];
+        encode(data, offset, length, chars, 0);
+        return new String(chars);
+    }
+
+    // The encoding with a "0x" prefix, built without concatenating strings
+    public static String encodeWithPrefix(final byte[] data) {
+        final char[] chars = new char[PREFIX.length() + 2 * data.length];
+        chars[0] = '0';
+        chars[1] = 'x';
+        encode(data, 0, data.length, chars, PREFIX.length());
+        return new String(chars);
+    }
+
+    // Writes 2 * length chars into out, and returns the position after the last one
+    public static int encode(final byte[] data, final int offset, final int length, final char[] out, final int outOffset) {
+        int pos = outOffset;
+        for (int i = offset; i < offset + length; i++) {
+            final int value = data[i] & 0xFF;
+            out[pos++] = DIGITS[value >>> 4];
+            out[pos++] = DIGITS[value & 0x0F];
+        }
+        return pos;
+    }
+
+    public static boolean hasPrefix(final CharSequence hex) {
+        return hex.length() >= 2 && hex.charAt(0) == '0' && (hex.charAt(1) == 'x' || hex.charAt(1) == 'X');
+    }
+
+    // Decodes hex with or without a "0x" prefix. An odd number of digits
+    // is read as if it had a leading zero.
+    public static byte[] decode(final CharSequence hex) {
+        final int start = hasPrefix(hex) ? PREFIX.length() : 0;
+        final byte[] out = new byte[decodedLength(hex.length() - start)];
+        decode(hex, start, hex.length(), out, 0);
+        return out;
+    }
+
+    public static int decodedLength(final int numberOfDigits) {
+        return (numberOfDigits + 1) / 2;
+    }
+
+    // Decodes the digits from start up to end into out, and returns the position after the
+    // last byte written. Throws IllegalArgumentException for anything that isn't a hex digit.
+    public static int decode(final CharSequence hex, final int start, final int end, final byte[] out, final int outOffset) {
+        int pos = start;
+        int outPos = outOffset;
+        if ((end - start) % 2 != 0) {
+            out[outPos++] = (byte) digitValue(hex, pos++);
+        }
+        while (pos < end) {
+            final int high = digitValue(hex, pos++);
+            final int low = digitValue(hex, pos++);
+            out[outPos++] = (byte) ((high << 4) | low);
+        }
+        return outPos;
+    }
+
+    private static int digitValue(final CharSequence hex, final int pos) {
+        final char c = hex.charAt(pos);
+        final int value = c < DIGIT_VALUES.length ? DIGIT_VALUES[c] : INVALID;
+        if (value == INVALID) {
+            throw new IllegalArgumentException("Invalid hex character '" + c + "' at " + pos);
+        }
+        return value;
+    }
+}
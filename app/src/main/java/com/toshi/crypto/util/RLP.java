@@ -20,18 +20,17 @@ package com.toshi.crypto.util;
 
 import com.toshi.crypto.db.ByteArrayWrapper;
 
-import org.spongycastle.util.encoders.Hex;
-
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.Set;
 
-import static com.toshi.crypto.util.ByteUtil.byteArrayToInt;
 import static com.toshi.crypto.util.ByteUtil.intToBytesNoLeadZeroes;
 import static com.toshi.crypto.util.ByteUtil.isNullOrZeroArray;
 import static com.toshi.crypto.util.ByteUtil.isSingleZero;
@@ -54,7 +53,7 @@ public class RLP {
      * - so 56 and 2^64 space seems like the right place to put the cutoff
      * - also, that's where Bitcoin's varint does the cutof
      */
-    private static final int SIZE_THRESHOLD = 56;
+    /* package */ static final int SIZE_THRESHOLD = 56;
 
     /** RLP encoding rules are defined as follows: */
 
@@ -69,7 +68,7 @@ public class RLP {
      * byte with value 0x80 plus the length of the string followed by the
      * string. The range of the first byte is thus [0x80, 0xb7].
      */
-    private static final int OFFSET_SHORT_ITEM = 0x80;
+    /* package */ static final int OFFSET_SHORT_ITEM = 0x80;
 
     /**
      * [0xb7]
@@ -90,7 +89,7 @@ public class RLP {
      * of the RLP encodings of the items. The range of the first byte is thus
      * [0xc0, 0xf7].
      */
-    private static final int OFFSET_SHORT_LIST = 0xc0;
+    /* package */ static final int OFFSET_SHORT_LIST = 0xc0;
 
     /**
      * [0xf7]
@@ -459,20 +458,64 @@ public class RLP {
      */
     public static RLPList decode2(byte[] msgData) {
         RLPList rlpList = new RLPList();
-        fullTraverse(msgData, 0, 0, msgData.length, 1, rlpList);
+        fullTraverse(msgData, 0, msgData.length, rlpList);
         return rlpList;
     }
 
     public static RLPElement decode2OneItem(byte[] msgData, int startPos) {
-        RLPList rlpList = new RLPList();
-        fullTraverse(msgData, 0, startPos, startPos + 1, 1, rlpList);
-        return rlpList.get(0);
+        return decodeElement(msgData, startPos, msgData.length);
     }
+
+    /**
+     * Iterate over the elements of an encoded list without decoding them all up front.
+     * Each element is decoded when it is reached, as a view over msgData.
+     *
+     * @param msgData - raw RLP data
+     * @param listPos - position of the list's prefix in msgData
+     * @return iterator over the list's elements
+     */
+    public static Iterator<RLPElement> iterate(final byte[] msgData, final int listPos) {
+        final int prefix = msgData[listPos] & 0xFF;
+        if (prefix < OFFSET_SHORT_LIST)
+            throw new RuntimeException("RLP element at " + listPos + " is not a list");
+
+        final int lengthOfLength = prefix > OFFSET_LONG_LIST ? prefix - OFFSET_LONG_LIST : 0;
+        final int length = prefix > OFFSET_LONG_LIST
+                ? calcLength(lengthOfLength, msgData, listPos)
+                : prefix - OFFSET_SHORT_LIST;
+        final int startPos = listPos + 1 + lengthOfLength;
+        final int endPos = startPos + length;
+        if (endPos > msgData.length)
+            throw new RuntimeException("RLP wrong encoding (list at " + listPos + " is truncated)");
+
+        return new Iterator<RLPElement>() {
+            private int pos = startPos;
+
+            @Override
+            public boolean hasNext() {
+                return pos < endPos;
+            }
+
+            @Override
+            public RLPElement next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                final RLPElement element = decodeElement(msgData, pos, endPos);
+                pos = element.getOffset() + element.getLength();
+                return element;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     /**
      * Get exactly one message payload
      */
-    private static void fullTraverse(byte[] msgData, int level, int startPos,
-                                     int endPos, int levelToIndex, RLPList rlpList) {
+    private static void fullTraverse(byte[] msgData, int startPos, int endPos, RLPList rlpList) {
 
         try {
             if (msgData == null || msgData.length == 0)
@@ -480,117 +523,81 @@ public class RLP {
             int pos = startPos;
 
             while (pos < endPos) {
+                RLPElement element = decodeElement(msgData, pos, endPos);
+                rlpList.add(element);
+                // Both items and lists end where their view ends
+                pos = element.getOffset() + element.getLength();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("RLP wrong encoding (" + HexCodec.encode(msgData, startPos, Math.min(endPos, msgData.length) - startPos) + ")", e);
+        }
+    }
 
+    // Decodes the element at pos as a view over msgData, without copying any bytes.
+    // An item's view is its payload, and a list's view is its whole encoding.
+    private static RLPElement decodeElement(byte[] msgData, int pos, int endPos) {
+        final RLPItem payload = decodePayload(msgData, pos, endPos);
+        if ((msgData[pos] & 0xFF) < OFFSET_SHORT_LIST)
+            return payload;
 
-                // It's a list with a payload more than 55 bytes
-                // data[0] - 0xF7 = how many next bytes allocated
-                // for the length of the list
-                if ((msgData[pos] & 0xFF) > OFFSET_LONG_LIST) {
-
-                    byte lengthOfLength = (byte) (msgData[pos] - OFFSET_LONG_LIST);
-                    int length = calcLength(lengthOfLength, msgData, pos);
-
-                    byte[] rlpData = new byte[lengthOfLength + length + 1];
-                    System.arraycopy(msgData, pos, rlpData, 0, lengthOfLength
-                            + length + 1);
-
-                    RLPList newLevelList = new RLPList();
-                    newLevelList.setRLPData(rlpData);
-
-                    fullTraverse(msgData, level + 1, pos + lengthOfLength + 1,
-                            pos + lengthOfLength + length + 1, levelToIndex,
-                            newLevelList);
-                    rlpList.add(newLevelList);
-
-                    pos += lengthOfLength + length + 1;
-                    continue;
-                }
-                // It's a list with a payload less than 55 bytes
-                if ((msgData[pos] & 0xFF) >= OFFSET_SHORT_LIST
-                        && (msgData[pos] & 0xFF) <= OFFSET_LONG_LIST) {
-
-                    byte length = (byte) ((msgData[pos] & 0xFF) - OFFSET_SHORT_LIST);
-
-                    byte[] rlpData = new byte[length + 1];
-                    System.arraycopy(msgData, pos, rlpData, 0, length + 1);
-
-                    RLPList newLevelList = new RLPList();
-                    newLevelList.setRLPData(rlpData);
-
-                    if (length > 0)
-                        fullTraverse(msgData, level + 1, pos + 1, pos + length
-                                + 1, levelToIndex, newLevelList);
-                    rlpList.add(newLevelList);
-
-                    pos += 1 + length;
-                    continue;
-                }
-                // It's an item with a payload more than 55 bytes
-                // data[0] - 0xB7 = how much next bytes allocated for
-                // the length of the string
-                if ((msgData[pos] & 0xFF) > OFFSET_LONG_ITEM
-                        && (msgData[pos] & 0xFF) < OFFSET_SHORT_LIST) {
-
-                    byte lengthOfLength = (byte) (msgData[pos] - OFFSET_LONG_ITEM);
-                    int length = calcLength(lengthOfLength, msgData, pos);
-
-                    // now we can parse an item for data[1]..data[length]
-                    byte[] item = new byte[length];
-                    System.arraycopy(msgData, pos + lengthOfLength + 1, item,
-                            0, length);
-
-                    byte[] rlpPrefix = new byte[lengthOfLength + 1];
-                    System.arraycopy(msgData, pos, rlpPrefix, 0,
-                            lengthOfLength + 1);
-
-                    RLPItem rlpItem = new RLPItem(item);
-                    rlpList.add(rlpItem);
-                    pos += lengthOfLength + length + 1;
-
-                    continue;
-                }
-                // It's an item less than 55 bytes long,
-                // data[0] - 0x80 == length of the item
-                if ((msgData[pos] & 0xFF) > OFFSET_SHORT_ITEM
-                        && (msgData[pos] & 0xFF) <= OFFSET_LONG_ITEM) {
-
-                    byte length = (byte) ((msgData[pos] & 0xFF) - OFFSET_SHORT_ITEM);
-
-                    byte[] item = new byte[length];
-                    System.arraycopy(msgData, pos + 1, item, 0, length);
-
-                    byte[] rlpPrefix = new byte[2];
-                    System.arraycopy(msgData, pos, rlpPrefix, 0, 2);
-
-                    RLPItem rlpItem = new RLPItem(item);
-                    rlpList.add(rlpItem);
-                    pos += 1 + length;
+        final int listEnd = payload.getOffset() + payload.getLength();
+        final RLPList newLevelList = new RLPList();
+        newLevelList.setRLPData(msgData, pos, listEnd - pos);
+        fullTraverse(msgData, payload.getOffset(), listEnd, newLevelList);
+        return newLevelList;
+    }
 
-                    continue;
-                }
-                // null item
-                if ((msgData[pos] & 0xFF) == OFFSET_SHORT_ITEM) {
-                    byte[] item = ByteUtil.EMPTY_BYTE_ARRAY;
-                    RLPItem rlpItem = new RLPItem(item);
-                    rlpList.add(rlpItem);
-                    pos += 1;
-                    continue;
-                }
-                // single byte item
-                if ((msgData[pos] & 0xFF) < OFFSET_SHORT_ITEM) {
+    // The payload of the element at pos, as a view over msgData. For a list
+    // this is the encoding of its elements, which are not decoded.
+    /* package */ static RLPItem decodePayload(byte[] msgData, int pos, int endPos) {
+        final int payloadOffset = getPayloadOffset(msgData, pos);
+        final int payloadLength = getPayloadLength(msgData, pos);
+        checkEnd(payloadOffset, payloadLength, endPos);
+        return new RLPItem(msgData, payloadOffset, payloadLength);
+    }
 
-                    byte[] item = {(byte) (msgData[pos] & 0xFF)};
+    /* package */ static int getPayloadOffset(byte[] msgData, int pos) {
+        final int prefix = msgData[pos] & 0xFF;
+        if (prefix > OFFSET_LONG_LIST)
+            return pos + 1 + prefix - OFFSET_LONG_LIST;
+        if (prefix >= OFFSET_SHORT_LIST)
+            return pos + 1;
+        if (prefix > OFFSET_LONG_ITEM)
+            return pos + 1 + prefix - OFFSET_LONG_ITEM;
+        if (prefix >= OFFSET_SHORT_ITEM)
+            return pos + 1;
+        // single byte item
+        return pos;
+    }
+
+    /* package */ static int getPayloadLength(byte[] msgData, int pos) {
+        final int prefix = msgData[pos] & 0xFF;
+
+        // It's a list with a payload more than 55 bytes
+        // data[0] - 0xF7 = how many next bytes allocated
+        // for the length of the list
+        if (prefix > OFFSET_LONG_LIST)
+            return calcLength(prefix - OFFSET_LONG_LIST, msgData, pos);
+        // It's a list with a payload less than 55 bytes
+        if (prefix >= OFFSET_SHORT_LIST)
+            return prefix - OFFSET_SHORT_LIST;
+        // It's an item with a payload more than 55 bytes
+        // data[0] - 0xB7 = how much next bytes allocated for
+        // the length of the string
+        if (prefix > OFFSET_LONG_ITEM)
+            return calcLength(prefix - OFFSET_LONG_ITEM, msgData, pos);
+        // It's an item less than 55 bytes long,
+        // data[0] - 0x80 == length of the item.
+        // The null item is the same with a length of 0
+        if (prefix >= OFFSET_SHORT_ITEM)
+            return prefix - OFFSET_SHORT_ITEM;
+        // single byte item
+        return 1;
+    }
 
-                    RLPItem rlpItem = new RLPItem(item);
-                    rlpList.add(rlpItem);
-                    pos += 1;
-                }
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("RLP wrong encoding (" + Hex.toHexString(msgData, startPos, endPos - startPos) + ")", e);
-        } catch (OutOfMemoryError e) {
-            throw new RuntimeException("Invalid RLP (excessive mem allocation while parsing) (" + Hex.toHexString(msgData, startPos, endPos - startPos) + ")", e);
-        }
+    private static void checkEnd(int payloadPos, int length, int endPos) {
+        if (length < 0 || payloadPos + length > endPos)
+            throw new RuntimeException("RLP element at " + payloadPos + " runs past the end of its data");
     }
 
     /**
@@ -609,12 +616,12 @@ public class RLP {
             return new DecodeResult(pos + 1, ""); // means no length or 0
         } else if (prefix < OFFSET_SHORT_ITEM) {
             return new DecodeResult(pos + 1, new byte[]{data[pos]}); // byte is its own RLP encoding
-        } else if (prefix < OFFSET_LONG_ITEM) {
+        } else if (prefix <= OFFSET_LONG_ITEM) {
             int len = prefix - OFFSET_SHORT_ITEM; // length of the encoded bytes
             return new DecodeResult(pos + 1 + len, copyOfRange(data, pos + 1, pos + 1 + len));
         } else if (prefix < OFFSET_SHORT_LIST) {
             int lenlen = prefix - OFFSET_LONG_ITEM; // length of length the encoded bytes
-            int lenbytes = byteArrayToInt(copyOfRange(data, pos + 1, pos + 1 + lenlen)); // length of encoded bytes
+            int lenbytes = calcLength(lenlen, data, pos); // length of encoded bytes
             return new DecodeResult(pos + 1 + lenlen + lenbytes, copyOfRange(data, pos + 1 + lenlen, pos + 1 + lenlen
                     + lenbytes));
         } else if (prefix <= OFFSET_LONG_LIST) {
@@ -624,7 +631,7 @@ public class RLP {
             return decodeList(data, pos, prevPos, len);
         } else if (prefix < 0xFF) {
             int lenlen = prefix - OFFSET_LONG_LIST; // length of length the encoded list
-            int lenlist = byteArrayToInt(copyOfRange(data, pos + 1, pos + 1 + lenlen)); // length of encoded bytes
+            int lenlist = calcLength(lenlen, data, pos); // length of encoded bytes
             pos = pos + lenlen + 1; // start at position of first element in list
             int prevPos = lenlist;
             return decodeList(data, pos, prevPos, lenlist);
@@ -659,26 +666,21 @@ public class RLP {
      * @return byte[] RLP encoded
      */
     public static byte[] encode(Object input) {
-        Value val = new Value(input);
-        if (val.isList()) {
-            List<Object> inputArray = val.asList();
-            if (inputArray.isEmpty()) {
-                return encodeLength(inputArray.size(), OFFSET_SHORT_LIST);
-            }
-            byte[] output = ByteUtil.EMPTY_BYTE_ARRAY;
-            for (Object object : inputArray) {
-                output = concatenate(output, encode(object));
+        final RLPWriter writer = new RLPWriter();
+        writeObject(writer, input);
+        return writer.toByteArray();
+    }
+
+    private static void writeObject(final RLPWriter writer, final Object input) {
+        final Object value = input instanceof Value ? ((Value) input).asObj() : input;
+        if (value != null && value.getClass().isArray() && !value.getClass().getComponentType().isPrimitive()) {
+            writer.startList();
+            for (final Object element : (Object[]) value) {
+                writeObject(writer, element);
             }
-            byte[] prefix = encodeLength(output.length, OFFSET_SHORT_LIST);
-            return concatenate(prefix, output);
+            writer.endList();
         } else {
-            byte[] inputAsBytes = toBytes(input);
-            if (inputAsBytes.length == 1 && (inputAsBytes[0] & 0xff) <= 0x80) {
-                return inputAsBytes;
-            } else {
-                byte[] firstByte = encodeLength(inputAsBytes.length, OFFSET_SHORT_ITEM);
-                return concatenate(firstByte, inputAsBytes);
-            }
+            writer.writeBytes(toBytes(value));
         }
     }
 
@@ -14,7 +14,6 @@
  *     You should have received a copy of the GNU General Public License
  *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
-
 package com.toshi.crypto.util;
 
 
@@ -23,4 +22,12 @@ import java.io.Serializable;
 public interface RLPElement extends Serializable {
 
     byte[] getRLPData();
+
+    // The same bytes as getRLPData(), as a range of the array the element was decoded from,
+    // so they can be read without being copied. The array must not be modified.
+    byte[] getBuffer();
+
+    int getOffset();
+
+    int getLength();
 }
@@ -14,21 +14,49 @@
  *     You should have received a copy of the GNU General Public License
  *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
-
 package com.toshi.crypto.util;
 
 
+import java.util.Arrays;
+
 public class RLPItem implements RLPElement {
 
-    private final byte[] rlpData;
+    private final byte[] buffer;
+    private final int offset;
+    private final int length;
+    private byte[] rlpData;
 
     public RLPItem(byte[] rlpData) {
-        this.rlpData = rlpData;
+        this(rlpData, 0, rlpData.length);
     }
 
+    // A view of length bytes of buffer, starting at offset
+    public RLPItem(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    // The bytes are only copied out of the buffer the first time they are asked for
     public byte[] getRLPData() {
-        if (rlpData.length == 0)
+        if (length == 0)
             return null;
+        if (rlpData == null)
+            rlpData = offset == 0 && length == buffer.length
+                    ? buffer
+                    : Arrays.copyOfRange(buffer, offset, offset + length);
         return rlpData;
     }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
 }
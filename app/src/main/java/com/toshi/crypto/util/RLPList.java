@@ -19,19 +19,47 @@ package com.toshi.crypto.util;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class RLPList extends ArrayList<RLPElement> implements RLPElement {
 
-    byte[] rlpData;
+    private byte[] buffer;
+    private int offset;
+    private int length;
+    private byte[] rlpData;
 
     public void setRLPData(byte[] rlpData) {
+        setRLPData(rlpData, 0, rlpData == null ? 0 : rlpData.length);
         this.rlpData = rlpData;
     }
 
+    // The encoded list is length bytes of buffer, starting at offset
+    public void setRLPData(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.rlpData = null;
+    }
+
+    // The bytes are only copied out of the buffer the first time they are asked for
     public byte[] getRLPData() {
+        if (rlpData == null && buffer != null)
+            rlpData = Arrays.copyOfRange(buffer, offset, offset + length);
         return rlpData;
     }
 
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
     public static void recursivePrint(RLPElement element) {
 
         if (element == null)
@@ -0,0 +1,209 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto.util;
+
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.toshi.crypto.util.RLP.OFFSET_SHORT_ITEM;
+import static com.toshi.crypto.util.RLP.OFFSET_SHORT_LIST;
+import static com.toshi.crypto.util.RLP.SIZE_THRESHOLD;
+import static org.spongycastle.util.BigIntegers.asUnsignedByteArray;
+
+/**
+ * Builds an RLP encoding in two passes. The write calls only record the items and keep
+ * track of the encoded size, closing a list works out the size of its header, and
+ * {@link #toByteArray()} or {@link #writeTo(byte[], int)} then writes everything in
+ * one go into a buffer of exactly the right size.
+ *
+ * <pre>
+ * final byte[] encoded = new RLPWriter()
+ *         .startList()
+ *         .writeBigInteger(nonce)
+ *         .writeBytes(address)
+ *         .endList()
+ *         .toByteArray();
+ * </pre>
+ */
+public class RLPWriter {
+
+    private static final int OFFSET_LONG_ITEM = OFFSET_SHORT_ITEM + SIZE_THRESHOLD - 1;
+    private static final int OFFSET_LONG_LIST = OFFSET_SHORT_LIST + SIZE_THRESHOLD - 1;
+
+    private final List<Entry> entries;
+    private final List<Entry> openLists;
+    private int encodedLength;
+
+    public RLPWriter() {
+        this.entries = new ArrayList<>();
+        this.openLists = new ArrayList<>();
+        this.encodedLength = 0;
+    }
+
+    public RLPWriter writeBytes(final byte[] data) {
+        final Entry entry = Entry.item(data == null ? ByteUtil.EMPTY_BYTE_ARRAY : data);
+        this.entries.add(entry);
+        this.encodedLength += entry.getEncodedLength();
+        return this;
+    }
+
+    public RLPWriter writeString(final String data) {
+        return writeBytes(data.getBytes());
+    }
+
+    public RLPWriter writeBigInteger(final BigInteger data) {
+        return writeBytes(data.equals(BigInteger.ZERO)
+                ? ByteUtil.EMPTY_BYTE_ARRAY
+                : asUnsignedByteArray(data));
+    }
+
+    public RLPWriter writeLong(final long data) {
+        return writeBigInteger(BigInteger.valueOf(data));
+    }
+
+    public RLPWriter writeInt(final int data) {
+        return writeBigInteger(BigInteger.valueOf(data));
+    }
+
+    // Adds data that is RLP encoded already, such as a nested structure encoded elsewhere
+    public RLPWriter writeEncoded(final byte[] encoded) {
+        this.entries.add(Entry.encoded(encoded));
+        this.encodedLength += encoded.length;
+        return this;
+    }
+
+    public RLPWriter startList() {
+        final Entry list = Entry.list(this.encodedLength);
+        this.entries.add(list);
+        this.openLists.add(list);
+        return this;
+    }
+
+    public RLPWriter endList() {
+        if (this.openLists.isEmpty()) {
+            throw new IllegalStateException("endList() called without a matching startList()");
+        }
+        final Entry list = this.openLists.remove(this.openLists.size() - 1);
+        list.length = this.encodedLength - list.length;
+        this.encodedLength += headerLength(list.length);
+        return this;
+    }
+
+    public int getEncodedLength() {
+        return this.encodedLength;
+    }
+
+    public byte[] toByteArray() {
+        final byte[] output = new byte[getEncodedLength()];
+        writeTo(output, 0);
+        return output;
+    }
+
+    // Writes the encoding into output, which must have getEncodedLength() bytes free from offset,
+    // and returns the number of bytes written
+    public int writeTo(final byte[] output, final int offset) {
+        if (!this.openLists.isEmpty()) {
+            throw new IllegalStateException(this.openLists.size() + " list(s) have not been ended");
+        }
+        if (output.length - offset < this.encodedLength) {
+            throw new IllegalArgumentException("Output needs " + this.encodedLength + " bytes");
+        }
+
+        int position = offset;
+        for (final Entry entry : this.entries) {
+            position = entry.writeTo(output, position);
+        }
+        return position - offset;
+    }
+
+    private static int headerLength(final int length) {
+        return length < SIZE_THRESHOLD ? 1 : 1 + bytesNeeded(length);
+    }
+
+    private static int bytesNeeded(final int value) {
+        if ((value & 0xFFFFFF00) == 0) return 1;
+        if ((value & 0xFFFF0000) == 0) return 2;
+        if ((value & 0xFF000000) == 0) return 3;
+        return 4;
+    }
+
+    private static int writeHeader(final byte[] output, int position, final int length, final int shortOffset, final int longOffset) {
+        if (length < SIZE_THRESHOLD) {
+            output[position++] = (byte) (shortOffset + length);
+            return position;
+        }
+
+        final int lengthBytes = bytesNeeded(length);
+        output[position++] = (byte) (longOffset + lengthBytes);
+        for (int i = lengthBytes - 1; i >= 0; i--) {
+            output[position++] = (byte) (length >>> (8 * i));
+        }
+        return position;
+    }
+
+    private static class Entry {
+        private static final int ITEM = 0;
+        private static final int LIST = 1;
+        private static final int ENCODED = 2;
+
+        private final int type;
+        private final byte[] data;
+        // Payload length for a list; the encoded size so far until the list is ended
+        private int length;
+
+        private Entry(final int type, final byte[] data, final int length) {
+            this.type = type;
+            this.data = data;
+            this.length = length;
+        }
+
+        private static Entry item(final byte[] data) {
+            return new Entry(ITEM, data, data.length);
+        }
+
+        private static Entry list(final int encodedLengthAtStart) {
+            return new Entry(LIST, null, encodedLengthAtStart);
+        }
+
+        private static Entry encoded(final byte[] data) {
+            return new Entry(ENCODED, data, data.length);
+        }
+
+        private boolean isSingleByte() {
+            return this.length == 1 && (this.data[0] & 0xFF) < OFFSET_SHORT_ITEM;
+        }
+
+        private int getEncodedLength() {
+            if (this.type == ENCODED || isSingleByte()) return this.length;
+            return headerLength(this.length) + this.length;
+        }
+
+        private int writeTo(final byte[] output, int position) {
+            if (this.type == LIST) {
+                return writeHeader(output, position, this.length, OFFSET_SHORT_LIST, OFFSET_LONG_LIST);
+            }
+            if (this.type == ITEM && !isSingleByte()) {
+                position = writeHeader(output, position, this.length, OFFSET_SHORT_ITEM, OFFSET_LONG_ITEM);
+            }
+            System.arraycopy(this.data, 0, output, position, this.length);
+            return position + this.length;
+        }
+    }
+}
@@ -18,8 +18,6 @@
 package com.toshi.crypto.util;
 
 
-import org.spongycastle.util.encoders.Hex;
-
 import java.math.BigInteger;
 
 public class TypeConverter {
@@ -29,24 +27,19 @@ public class TypeConverter {
             return BigInteger.ZERO;
         }
 
-        final String hexa = input.startsWith("0x") ? input.substring(2) : input;
         try {
-            return new BigInteger(hexa, 16);
-        } catch (final NumberFormatException ex) {
+            return new BigInteger(1, HexCodec.decode(input));
+        } catch (final IllegalArgumentException ex) {
             return BigInteger.ZERO;
         }
     }
 
-    public static byte[] StringHexToByteArray(String x) throws Exception {
-        if (x.startsWith("0x")) {
-            x = x.substring(2);
-        }
-        if (x.length() % 2 != 0) x = "0" + x;
-        return Hex.decode(x);
+    public static byte[] StringHexToByteArray(final String x) throws Exception {
+        return HexCodec.decode(x);
     }
 
     public static String toJsonHex(final byte[] x) {
-        return "0x"+Hex.toHexString(x);
+        return HexCodec.encodeWithPrefix(x);
     }
 
     public static String toJsonHex(final String x) {
@@ -17,9 +17,8 @@
 
 package com.toshi.crypto.util;
 
-import org.spongycastle.util.encoders.Hex;
-
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -31,6 +30,16 @@ public class Value {
 
     private boolean decoded = false;
 
+    // Until the value is decoded, its encoding is the element at offset in buffer, which
+    // ends before end. A list's elements are decoded one at a time, as they are asked for.
+    private byte[] buffer;
+    private int offset;
+    private int end;
+    private int payloadOffset = -1;
+    private int payloadEnd;
+    private int[] elementOffsets;
+    private Value[] elements;
+
     public static Value fromRlpEncoded(byte[] data) {
 
         if (data != null && data.length != 0) {
@@ -46,6 +55,15 @@ public class Value {
 
     public void init(byte[] rlp){
         this.rlp = rlp;
+        this.buffer = rlp;
+        this.offset = 0;
+        this.end = rlp == null ? 0 : rlp.length;
+    }
+
+    private Value(byte[] buffer, int offset, int end) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.end = end;
     }
 
     public Value(Object obj) {
@@ -70,12 +88,20 @@ public class Value {
     }
 
     public List<Object> asList() {
+        if (isEncodedList()) {
+            final List<Object> list = new ArrayList<>(length());
+            for (int i = 0; i < length(); i++) {
+                list.add(getElement(i).asObj());
+            }
+            return list;
+        }
         decode();
         Object[] valueArray = (Object[]) value;
         return Arrays.asList(valueArray);
     }
 
     public int asInt() {
+        if (isEncodedList()) return 0;
         decode();
         if (isInt()) {
             return (Integer) value;
@@ -86,6 +112,7 @@ public class Value {
     }
 
     public long asLong() {
+        if (isEncodedList()) return 0;
         decode();
         if (isLong()) {
             return (Long) value;
@@ -101,6 +128,7 @@ public class Value {
     }
 
     public String asString() {
+        if (isEncodedList()) return "";
         decode();
         if (isBytes()) {
             return new String((byte[]) value);
@@ -111,6 +139,7 @@ public class Value {
     }
 
     public byte[] asBytes() {
+        if (isEncodedList()) return new byte[0];
         decode();
         if (isBytes()) {
             return (byte[]) value;
@@ -121,7 +150,7 @@ public class Value {
     }
 
     public String getHex(){
-        return Hex.toHexString(this.encode());
+        return HexCodec.encode(this.encode());
     }
 
     public byte[] getData(){
@@ -134,6 +163,15 @@ public class Value {
     }
 
     public Value get(int index) {
+        if (isEncodedList()) {
+            if (length() <= index) {
+                return new Value(null);
+            }
+            if (index < 0) {
+                throw new RuntimeException("Negative index not allowed");
+            }
+            return getElement(index);
+        }
         if (isList()) {
             // Guard for OutOfBounds
             if (asList().size() <= index) {
@@ -154,17 +192,67 @@ public class Value {
 
     public void decode(){
         if (!this.decoded) {
-            this.value = RLP.decode(rlp, 0).getDecoded();
+            this.value = buffer == null
+                    ? RLP.decode(rlp, 0).getDecoded()
+                    : RLP.decode(buffer, offset).getDecoded();
             this.decoded = true;
         }
     }
 
     public byte[] encode() {
+        if (rlp == null && buffer != null) {
+            readPayload();
+            rlp = Arrays.copyOfRange(buffer, offset, payloadEnd);
+        }
         if (rlp == null)
             rlp = RLP.encode(value);
         return rlp;
     }
 
+    // True while this is a list that hasn't been decoded, so the checks and conversions
+    // can be answered from its encoding
+    private boolean isEncodedList() {
+        return !decoded && buffer != null && (buffer[offset] & 0xFF) >= RLP.OFFSET_SHORT_LIST;
+    }
+
+    private void readPayload() {
+        if (payloadOffset < 0) {
+            final RLPItem payload = RLP.decodePayload(buffer, offset, end);
+            payloadOffset = payload.getOffset();
+            payloadEnd = payloadOffset + payload.getLength();
+        }
+    }
+
+    // Where each of the list's elements starts. Only their prefixes are read here,
+    // and an element is decoded when it is first asked for.
+    private int[] getElementOffsets() {
+        if (elementOffsets == null) {
+            readPayload();
+            int[] offsets = new int[16];
+            int count = 0;
+            int pos = payloadOffset;
+            while (pos < payloadEnd) {
+                if (count == offsets.length)
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                offsets[count++] = pos;
+                final int next = RLP.getPayloadOffset(buffer, pos) + RLP.getPayloadLength(buffer, pos);
+                if (next <= pos || next > payloadEnd)
+                    throw new RuntimeException("RLP element at " + pos + " runs past the end of its list");
+                pos = next;
+            }
+            elementOffsets = Arrays.copyOf(offsets, count);
+            elements = new Value[count];
+        }
+        return elementOffsets;
+    }
+
+    private Value getElement(int index) {
+        final int[] offsets = getElementOffsets();
+        if (elements[index] == null)
+            elements[index] = new Value(buffer, offsets[index], payloadEnd);
+        return elements[index];
+    }
+
     public byte[] hash(){
         if (sha3 == null)
             sha3 = HashUtil.sha3(encode());
@@ -176,31 +264,37 @@ public class Value {
      * *****************/
 
     public boolean isList() {
+        if (isEncodedList()) return true;
         decode();
         return value != null && value.getClass().isArray() && !value.getClass().getComponentType().isPrimitive();
     }
 
     public boolean isString() {
+        if (isEncodedList()) return false;
         decode();
         return value instanceof String;
     }
 
     public boolean isInt() {
+        if (isEncodedList()) return false;
         decode();
         return value instanceof Integer;
     }
 
     public boolean isLong() {
+        if (isEncodedList()) return false;
         decode();
         return value instanceof Long;
     }
 
     public boolean isBigInt() {
+        if (isEncodedList()) return false;
         decode();
         return value instanceof BigInteger;
     }
 
     public boolean isBytes() {
+        if (isEncodedList()) return false;
         decode();
         return value instanceof byte[];
     }
@@ -241,16 +335,22 @@ public class Value {
     }
 
     public boolean isHashCode() {
+        if (isEncodedList()) return false;
         decode();
         return this.asBytes().length == 32;
     }
 
     public boolean isNull() {
+        if (isEncodedList()) return false;
         decode();
         return value == null;
     }
 
     public boolean isEmpty() {
+        if (isEncodedList()) {
+            readPayload();
+            return payloadEnd == payloadOffset;
+        }
         decode();
         if (isNull()) return true;
         if (isBytes() && asBytes().length == 0) return true;
@@ -261,6 +361,7 @@ public class Value {
     }
 
     public int length() {
+        if (isEncodedList()) return getElementOffsets().length;
         decode();
         if (isList()) {
             return asList().size();
@@ -273,6 +374,13 @@ public class Value {
     }
 
     public int countBranchNodes() {
+        if (isEncodedList()) {
+            int i = 0;
+            for (int index = 0; index < length(); index++) {
+                i += getElement(index).countBranchNodes();
+            }
+            return i;
+        }
         decode();
         if (this.isList()) {
             List<Object> objList = this.asList();
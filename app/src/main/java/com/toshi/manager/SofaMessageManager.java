@@ -30,13 +30,16 @@ import com.toshi.crypto.signal.SignalPreferences;
 import com.toshi.crypto.signal.model.DecryptedSignalMessage;
 import com.toshi.crypto.signal.store.ProtocolStore;
 import com.toshi.crypto.signal.store.SignalTrustStore;
+import com.toshi.manager.chat.PreKeyManager;
 import com.toshi.manager.chat.SofaMessageReceiver;
 import com.toshi.manager.chat.SofaMessageRegistration;
 import com.toshi.manager.chat.SofaMessageSender;
 import com.toshi.manager.model.SofaMessageTask;
+import com.toshi.manager.store.AttachmentStore;
 import com.toshi.manager.store.ConversationStore;
-import com.toshi.model.local.Conversation;
+import com.toshi.model.local.ConversationSummary;
 import com.toshi.model.local.Group;
+import com.toshi.model.local.MessagePage;
 import com.toshi.model.local.Recipient;
 import com.toshi.model.local.User;
 import com.toshi.model.sofa.SofaMessage;
@@ -66,6 +69,7 @@ public final class SofaMessageManager {
 
     private ChatService chatService;
     private ProtocolStore protocolStore;
+    private PreKeyManager preKeyManager;
     private SofaMessageReceiver messageReceiver;
     private SofaMessageRegistration sofaGcmRegister;
     private SofaMessageSender messageSender;
@@ -138,18 +142,27 @@ public final class SofaMessageManager {
         }
     }
 
-    public final Single<List<Conversation>> loadAllConversations() {
+    public final Single<List<ConversationSummary>> loadAllConversations() {
         return Single
-                .fromCallable(conversationStore::loadAll)
+                .fromCallable(conversationStore::loadAllSummaries)
                 .subscribeOn(Schedulers.io());
     }
 
-    public final Single<Conversation> loadConversation(final String threadId) {
-        return this.conversationStore.loadByThreadId(threadId)
+    // Loads the newest page of messages and marks the conversation as read.
+    public final Single<MessagePage> loadLatestMessages(final String threadId, final int limit) {
+        return this.conversationStore.loadLatestMessages(threadId, limit)
                 .subscribeOn(Schedulers.io());
     }
 
-    public final Observable<Conversation> registerForAllConversationChanges() {
+    // Loads a page of the messages that come before the given position in the conversation.
+    public final Single<MessagePage> loadMessages(final String threadId,
+                                                  final int beforeIndex,
+                                                  final int limit) {
+        return this.conversationStore.loadMessages(threadId, beforeIndex, limit)
+                .subscribeOn(Schedulers.io());
+    }
+
+    public final Observable<ConversationSummary> registerForAllConversationChanges() {
         return this.conversationStore.getConversationChangedObservable();
     }
 
@@ -175,6 +188,18 @@ public final class SofaMessageManager {
         initMessageSender();
         initRegistrationTask();
         attachSubscribers();
+        cleanUpAttachments();
+    }
+
+    private void cleanUpAttachments() {
+        try {
+            final AttachmentStore attachmentStore = new AttachmentStore();
+            attachmentStore.migrateExistingAttachments();
+            final int deletedAttachments = attachmentStore.collectGarbage();
+            LogUtil.i(getClass(), "Deleted " + deletedAttachments + " unused attachments");
+        } catch (final RuntimeException ex) {
+            LogUtil.exception(getClass(), "Error while cleaning up attachments", ex);
+        }
     }
 
     private void generateStores() {
@@ -186,6 +211,10 @@ public final class SofaMessageManager {
                 trustStore);
         this.signalServiceUrls[0] = signalServiceUrl;
         this.chatService = new ChatService(this.signalServiceUrls, this.wallet, this.protocolStore, this.userAgent);
+        this.preKeyManager = new PreKeyManager(this.chatService, this.protocolStore);
+        if (!haveRegisteredWithServer()) {
+            this.preKeyManager.prepareRegistration();
+        }
 
     }
 
@@ -194,6 +223,7 @@ public final class SofaMessageManager {
         this.messageReceiver = new SofaMessageReceiver(
                 this.wallet,
                 this.protocolStore,
+                this.preKeyManager,
                 this.conversationStore,
                 this.signalServiceUrls);
     }
@@ -210,7 +240,7 @@ public final class SofaMessageManager {
 
     private void initRegistrationTask() {
         if (this.sofaGcmRegister != null) return;
-        this.sofaGcmRegister = new SofaMessageRegistration(this.sharedPreferences, this.chatService, this.protocolStore);
+        this.sofaGcmRegister = new SofaMessageRegistration(this.sharedPreferences, this.chatService, this.protocolStore, this.preKeyManager);
         this.sofaGcmRegister
                 .registerIfNeeded()
                 .subscribe(
@@ -274,7 +304,7 @@ public final class SofaMessageManager {
 
     private void clearMessageReceiver() {
         if (this.messageReceiver != null) {
-            this.messageReceiver.shutdown();
+            this.messageReceiver.stop();
             this.messageReceiver = null;
         }
     }
@@ -0,0 +1,213 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.toshi.manager.chat;
+
+
+import com.toshi.crypto.signal.store.ProtocolStore;
+import com.toshi.manager.model.GroupDeliveryResult;
+import com.toshi.util.LogUtil;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.signalservice.api.SignalServiceMessageSender;
+import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.EncapsulatedExceptions;
+import org.whispersystems.signalservice.api.push.exceptions.NetworkFailureException;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Delivers a group message to every member separately, so members are encrypted
+// for and delivered to in parallel, and a failure for one member doesn't fail
+// the whole group. Only the members that failed are retried, after a delay that
+// doubles with every attempt, so a short network outage doesn't use up every attempt.
+/* package */ class GroupFanOutSender {
+
+    /* package */ interface MessageBuilder {
+        SignalServiceDataMessage build() throws IOException;
+    }
+
+    private static final int SUCCESS = 0;
+    private static final int FAILED = 1;
+    private static final int UNREGISTERED = 2;
+
+    private final SignalServiceMessageSender signalMessageSender;
+    private final ProtocolStore protocolStore;
+    private final ExecutorService workers;
+    private final int maxAttempts;
+    private final long retryDelayMs;
+
+    /* package */ GroupFanOutSender(final SignalServiceMessageSender signalMessageSender,
+                                    final ProtocolStore protocolStore,
+                                    final int parallelism,
+                                    final int maxAttempts,
+                                    final long retryDelayMs) {
+        this.signalMessageSender = signalMessageSender;
+        this.protocolStore = protocolStore;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelayMs = Math.max(0, retryDelayMs);
+    }
+
+    // Messages with attachments can't share a single message between members, as the
+    // attachment stream can only be uploaded once. The first attempt for those goes
+    // through Signal's own multi-recipient send, which uploads the attachment once.
+    /* package */ GroupDeliveryResult send(final List<SignalServiceAddress> members,
+                                           final MessageBuilder messageBuilder,
+                                           final boolean hasAttachment) throws IOException {
+        final GroupDeliveryResult result = new GroupDeliveryResult();
+        final SignalServiceDataMessage sharedMessage = hasAttachment ? null : messageBuilder.build();
+
+        List<SignalServiceAddress> pendingMembers = members;
+        for (int attempt = 0; attempt < this.maxAttempts && pendingMembers.size() > 0; attempt++) {
+            if (attempt > 0 && !waitBeforeRetry(attempt)) break;
+
+            final GroupDeliveryResult attemptResult = hasAttachment && attempt == 0
+                    ? sendAsSingleMessage(pendingMembers, messageBuilder.build())
+                    : sendConcurrently(pendingMembers, sharedMessage, messageBuilder);
+
+            for (final SignalServiceAddress member : attemptResult.getDelivered()) result.addDelivered(member);
+            for (final SignalServiceAddress member : attemptResult.getUnregistered()) result.addUnregistered(member);
+            pendingMembers = attemptResult.getFailed();
+        }
+
+        for (final SignalServiceAddress member : pendingMembers) result.addFailed(member);
+        return result;
+    }
+
+    // Returns false if the thread was interrupted while waiting, and there should be no more attempts
+    private boolean waitBeforeRetry(final int attempt) {
+        try {
+            Thread.sleep(this.retryDelayMs << (attempt - 1));
+            return true;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private GroupDeliveryResult sendConcurrently(final List<SignalServiceAddress> members,
+                                                 final SignalServiceDataMessage sharedMessage,
+                                                 final MessageBuilder messageBuilder) {
+        final List<Future<Integer>> deliveries = new ArrayList<>(members.size());
+        for (final SignalServiceAddress member : members) {
+            deliveries.add(this.workers.submit(() -> {
+                final SignalServiceDataMessage message = sharedMessage != null
+                        ? sharedMessage
+                        : messageBuilder.build();
+                return sendToMember(member, message);
+            }));
+        }
+
+        final GroupDeliveryResult result = new GroupDeliveryResult();
+        final Iterator<Future<Integer>> deliveryIterator = deliveries.iterator();
+        for (final SignalServiceAddress member : members) {
+            final int deliveryState = waitForDelivery(deliveryIterator.next());
+            if (deliveryState == SUCCESS) {
+                result.addDelivered(member);
+            } else if (deliveryState == UNREGISTERED) {
+                result.addUnregistered(member);
+            } else {
+                result.addFailed(member);
+            }
+        }
+        return result;
+    }
+
+    private int sendToMember(final SignalServiceAddress member, final SignalServiceDataMessage message) {
+        try {
+            this.signalMessageSender.sendMessage(member, message);
+            return SUCCESS;
+        } catch (final UntrustedIdentityException ex) {
+            LogUtil.error(getClass(), "Keys have changed. " + ex);
+            saveIdentity(ex);
+            return FAILED;
+        } catch (final UnregisteredUserException ex) {
+            LogUtil.error(getClass(), "Group member is no longer registered. " + ex);
+            return UNREGISTERED;
+        } catch (final IOException ex) {
+            LogUtil.error(getClass(), "Error sending to group member. " + ex);
+            return FAILED;
+        }
+    }
+
+    private int waitForDelivery(final Future<Integer> delivery) {
+        try {
+            return delivery.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return FAILED;
+        } catch (final ExecutionException ex) {
+            LogUtil.error(getClass(), "Error sending to group member. " + ex);
+            return FAILED;
+        }
+    }
+
+    private GroupDeliveryResult sendAsSingleMessage(final List<SignalServiceAddress> members,
+                                                    final SignalServiceDataMessage message) throws IOException {
+        final GroupDeliveryResult result = new GroupDeliveryResult();
+        final Set<String> failedNumbers = new HashSet<>();
+        final Set<String> unregisteredNumbers = new HashSet<>();
+
+        try {
+            this.signalMessageSender.sendMessage(members, message);
+        } catch (final EncapsulatedExceptions ex) {
+            for (final UntrustedIdentityException uie : ex.getUntrustedIdentityExceptions()) {
+                LogUtil.error(getClass(), "Keys have changed.");
+                saveIdentity(uie);
+                failedNumbers.add(uie.getE164Number());
+            }
+            for (final NetworkFailureException nfe : ex.getNetworkExceptions()) {
+                failedNumbers.add(nfe.getE164number());
+            }
+            for (final UnregisteredUserException uue : ex.getUnregisteredUserExceptions()) {
+                unregisteredNumbers.add(uue.getE164Number());
+            }
+        }
+
+        for (final SignalServiceAddress member : members) {
+            if (unregisteredNumbers.contains(member.getNumber())) {
+                result.addUnregistered(member);
+            } else if (failedNumbers.contains(member.getNumber())) {
+                result.addFailed(member);
+            } else {
+                result.addDelivered(member);
+            }
+        }
+        return result;
+    }
+
+    private void saveIdentity(final UntrustedIdentityException ex) {
+        this.protocolStore.saveIdentity(
+                new SignalProtocolAddress(ex.getE164Number(), SignalServiceAddress.DEFAULT_DEVICE_ID),
+                ex.getIdentityKey());
+    }
+
+    /* package */ void shutdown() {
+        this.workers.shutdownNow();
+    }
+}
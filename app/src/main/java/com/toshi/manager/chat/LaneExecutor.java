@@ -0,0 +1,153 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.toshi.manager.chat;
+
+
+import com.toshi.util.LogUtil;
+import com.toshi.util.MetricsCounter;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs tasks in lanes identified by a key. Tasks in the same lane run one after
+// the other in the order they were added; different lanes run concurrently,
+// limited by the size of the worker pool.
+/* package */ class LaneExecutor {
+
+    private final ExecutorService workers;
+    private final Map<String, Lane> activeLanes;
+    private final MetricsCounter taskMetrics;
+    private final AtomicInteger queueDepth;
+
+    /* package */ LaneExecutor(final int parallelism) {
+        this.workers = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        this.activeLanes = new HashMap<>();
+        this.taskMetrics = new MetricsCounter("Lane tasks");
+        this.queueDepth = new AtomicInteger();
+    }
+
+    /* package */ void execute(final String laneKey, final Runnable task) {
+        synchronized (this.activeLanes) {
+            Lane lane = this.activeLanes.get(laneKey);
+            if (lane == null) {
+                lane = new Lane(laneKey);
+                this.activeLanes.put(laneKey, lane);
+            }
+
+            lane.tasks.add(new QueuedTask(task));
+            this.queueDepth.incrementAndGet();
+
+            if (!lane.isScheduled) {
+                lane.isScheduled = true;
+                schedule(lane);
+            }
+        }
+    }
+
+    private void schedule(final Lane lane) {
+        try {
+            this.workers.execute(() -> runNextTask(lane));
+        } catch (final RejectedExecutionException ex) {
+            LogUtil.e(getClass(), "Lane executor has been shut down. " + ex);
+        }
+    }
+
+    // Runs a single task and then puts the lane at the back of the worker queue,
+    // so a lane with a long backlog can't starve the other lanes.
+    private void runNextTask(final Lane lane) {
+        final QueuedTask nextTask;
+        synchronized (this.activeLanes) {
+            nextTask = lane.tasks.poll();
+            if (nextTask == null) {
+                finishLane(lane);
+                return;
+            }
+            this.queueDepth.decrementAndGet();
+        }
+
+        try {
+            nextTask.task.run();
+        } catch (final RuntimeException ex) {
+            LogUtil.exception(getClass(), "Error while running task in lane", ex);
+        }
+        this.taskMetrics.record(1, System.nanoTime() - nextTask.queuedAt);
+
+        synchronized (this.activeLanes) {
+            if (lane.tasks.isEmpty()) {
+                finishLane(lane);
+                return;
+            }
+            schedule(lane);
+        }
+    }
+
+    private void finishLane(final Lane lane) {
+        lane.isScheduled = false;
+        this.activeLanes.remove(lane.key);
+    }
+
+    // Number of tasks that have been added but haven't started yet
+    /* package */ int getQueueDepth() {
+        return this.queueDepth.get();
+    }
+
+    // Time from a task being added until it has finished, over all lanes. Lanes come and go
+    // with the conversations they are for, so they don't get counters of their own.
+    /* package */ MetricsCounter getTaskMetrics() {
+        return this.taskMetrics;
+    }
+
+    /* package */ void shutdown() {
+        this.workers.shutdownNow();
+        synchronized (this.activeLanes) {
+            // Only drop the tasks that are still queued, a task that has just been
+            // polled has already been taken off the depth
+            for (final Lane lane : this.activeLanes.values()) {
+                this.queueDepth.addAndGet(-lane.tasks.size());
+                lane.tasks.clear();
+            }
+            this.activeLanes.clear();
+        }
+    }
+
+    private static class Lane {
+        private final String key;
+        private final Queue<QueuedTask> tasks;
+        private boolean isScheduled;
+
+        private Lane(final String key) {
+            this.key = key;
+            this.tasks = new ArrayDeque<>();
+        }
+    }
+
+    private static class QueuedTask {
+        private final Runnable task;
+        private final long queuedAt;
+
+        private QueuedTask(final Runnable task) {
+            this.task = task;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+}
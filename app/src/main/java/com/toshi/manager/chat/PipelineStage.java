@@ -0,0 +1,138 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.toshi.manager.chat;
+
+
+import com.toshi.util.LogUtil;
+import com.toshi.util.MetricsCounter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// One stage of a processing pipeline. Items are handed to the stage through bounded
+// queues, so a slow stage blocks the stage before it instead of buffering without limit.
+// Each worker has its own queue, and items with the same partition key always go to the
+// same worker, so they are processed in the order they were submitted.
+/* package */ class PipelineStage<T> {
+
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    /* package */ interface Handler<T> {
+        void handle(T item) throws Exception;
+    }
+
+    private final String name;
+    private final Handler<T> handler;
+    private final List<BlockingQueue<QueuedItem<T>>> queues;
+    private final List<Thread> workers;
+    private final MetricsCounter metrics;
+
+    /* package */ PipelineStage(final String name,
+                                final int workerCount,
+                                final int queueCapacity,
+                                final Handler<T> handler) {
+        this.name = name;
+        this.handler = handler;
+        this.metrics = new MetricsCounter(name);
+        this.queues = new ArrayList<>(workerCount);
+        this.workers = new ArrayList<>(workerCount);
+
+        for (int i = 0; i < Math.max(1, workerCount); i++) {
+            final BlockingQueue<QueuedItem<T>> queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+            final Thread worker = new Thread(() -> processItems(queue), name + "-" + i);
+            worker.setDaemon(true);
+            this.queues.add(queue);
+            this.workers.add(worker);
+        }
+    }
+
+    /* package */ PipelineStage<T> start() {
+        for (final Thread worker : this.workers) {
+            worker.start();
+        }
+        return this;
+    }
+
+    // Interrupts the workers and waits a short while for them to finish. Items that are
+    // still queued are dropped, and the stage can't be started again.
+    /* package */ void stop() {
+        for (final Thread worker : this.workers) {
+            worker.interrupt();
+        }
+        try {
+            for (final Thread worker : this.workers) {
+                worker.join(STOP_TIMEOUT_MS);
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Blocks while the queue for this partition is full.
+    /* package */ void submit(final String partitionKey, final T item) throws InterruptedException {
+        final int partition = partitionKey == null
+                ? 0
+                : (partitionKey.hashCode() & Integer.MAX_VALUE) % this.queues.size();
+        this.queues.get(partition).put(new QueuedItem<>(item));
+    }
+
+    private void processItems(final BlockingQueue<QueuedItem<T>> queue) {
+        while (!Thread.currentThread().isInterrupted()) {
+            final QueuedItem<T> queuedItem;
+            try {
+                queuedItem = queue.take();
+            } catch (final InterruptedException ex) {
+                return;
+            }
+
+            try {
+                this.handler.handle(queuedItem.item);
+            } catch (final InterruptedException ex) {
+                return;
+            } catch (final Exception ex) {
+                LogUtil.exception(getClass(), "Error in " + this.name, ex);
+            }
+            this.metrics.record(1, System.nanoTime() - queuedItem.queuedAt);
+        }
+    }
+
+    // Number of items waiting to be processed
+    /* package */ int getQueueDepth() {
+        int depth = 0;
+        for (final BlockingQueue<QueuedItem<T>> queue : this.queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    // Throughput, and the time from an item being submitted until it has been processed
+    /* package */ MetricsCounter getMetrics() {
+        return this.metrics;
+    }
+
+    private static class QueuedItem<T> {
+        private final T item;
+        private final long queuedAt;
+
+        private QueuedItem(final T item) {
+            this.item = item;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+}
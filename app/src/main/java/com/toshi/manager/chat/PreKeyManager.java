@@ -0,0 +1,136 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.chat;
+
+
+import com.toshi.crypto.signal.ChatService;
+import com.toshi.crypto.signal.store.ProtocolStore;
+import com.toshi.util.LogUtil;
+
+import org.whispersystems.libsignal.state.PreKeyRecord;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import rx.Single;
+import rx.schedulers.Schedulers;
+
+// Keeps the server stocked with one-time prekeys, without making anyone wait for them.
+//
+// Every prekey message received uses up one of the prekeys on the server. The manager keeps
+// an estimate of how many are left, and once that drops below the low watermark it asks the
+// server for the real count, and if it is low, generates, stores and uploads a new batch,
+// all in the background. The prekeys for registering are generated ahead of time as well.
+public class PreKeyManager {
+
+    private static final int LOW_WATERMARK = 20;
+    private static final int UNKNOWN = -1;
+
+    private final ChatService chatService;
+    private final ProtocolStore protocolStore;
+    private final AtomicBoolean isRefreshing = new AtomicBoolean(false);
+    private int remainingOnServer = UNKNOWN;
+    private Single<List<PreKeyRecord>> registrationPreKeys;
+
+    public PreKeyManager(final ChatService chatService, final ProtocolStore protocolStore) {
+        this.chatService = chatService;
+        this.protocolStore = protocolStore;
+    }
+
+    // Starts generating the prekeys to register with, so they are ready once registration needs them
+    public void prepareRegistration() {
+        getRegistrationPreKeys()
+                .subscribe(
+                        __ -> {},
+                        ex -> LogUtil.exception(getClass(), "Error while generating prekeys", ex)
+                );
+    }
+
+    // The same prekeys until the registration has succeeded
+    public synchronized Single<List<PreKeyRecord>> getRegistrationPreKeys() {
+        if (this.registrationPreKeys == null) {
+            this.registrationPreKeys = Single
+                    .fromCallable(this.protocolStore::generatePreKeys)
+                    .subscribeOn(Schedulers.io())
+                    .doOnError(__ -> clearRegistrationPreKeys())
+                    .toObservable()
+                    .cache()
+                    .toSingle();
+        }
+        return this.registrationPreKeys;
+    }
+
+    private synchronized void clearRegistrationPreKeys() {
+        this.registrationPreKeys = null;
+    }
+
+    public synchronized void onRegistered(final List<PreKeyRecord> preKeys) {
+        this.registrationPreKeys = null;
+        this.remainingOnServer = preKeys.size();
+    }
+
+    // Called for every prekey message received
+    public void onPreKeyUsed() {
+        final int remaining;
+        synchronized (this) {
+            if (this.remainingOnServer != UNKNOWN) {
+                this.remainingOnServer--;
+            }
+            remaining = this.remainingOnServer;
+        }
+
+        if (remaining < LOW_WATERMARK) {
+            refreshIfNeeded();
+        }
+    }
+
+    // Checks how many prekeys the server has left, and uploads a new batch if it is running low.
+    // Only one check runs at a time.
+    public void refreshIfNeeded() {
+        if (!this.isRefreshing.compareAndSet(false, true)) return;
+
+        Single.fromCallable(this::refreshPreKeys)
+                .subscribeOn(Schedulers.io())
+                .subscribe(
+                        remaining -> LogUtil.i(getClass(), "Prekeys left on the server: " + remaining),
+                        ex -> LogUtil.exception(getClass(), "Error while refreshing prekeys", ex)
+                );
+    }
+
+    private int refreshPreKeys() throws Exception {
+        try {
+            final int count = this.chatService.getPreKeysCount();
+            if (count >= LOW_WATERMARK) {
+                setRemainingOnServer(count);
+                return count;
+            }
+
+            final List<PreKeyRecord> preKeys = this.protocolStore.generatePreKeys();
+            this.chatService.uploadPreKeys(this.protocolStore, preKeys);
+            // The upload replaces the prekeys the server had, it doesn't add to them
+            setRemainingOnServer(preKeys.size());
+            return preKeys.size();
+        } finally {
+            this.isRefreshing.set(false);
+        }
+    }
+
+    private synchronized void setRemainingOnServer(final int remaining) {
+        this.remainingOnServer = remaining;
+    }
+}
@@ -38,6 +38,7 @@ import com.toshi.model.sofa.SofaMessage;
 import com.toshi.model.sofa.SofaType;
 import com.toshi.util.FileUtil;
 import com.toshi.util.LogUtil;
+import com.toshi.util.MetricsCounter;
 import com.toshi.view.BaseApplication;
 import com.toshi.view.notification.ChatNotificationManager;
 
@@ -59,10 +60,12 @@ import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.api.messages.SignalServiceGroup;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
 import org.whispersystems.signalservice.internal.push.SignalServiceUrl;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -73,20 +76,38 @@ public class SofaMessageReceiver {
 
     private final static String USER_AGENT = "Android " + BuildConfig.APPLICATION_ID + " - " + BuildConfig.VERSION_NAME +  ":" + BuildConfig.VERSION_CODE;
 
+    // Decryption has to happen in the order the envelopes were received, so it has a single worker.
+    // Resolving senders and downloading attachments is done by several workers,
+    // while messages from the same sender stay in order.
+    // The pipe acknowledges an envelope as soon as it has been read, so an envelope that is
+    // still queued when the process dies is lost. The queues are kept just long enough to
+    // keep the stages busy, and reading from the socket waits once they are full.
+    private static final int DECRYPT_QUEUE_SIZE = 1;
+    private static final int RESOLVE_WORKERS = 3;
+    private static final int RESOLVE_QUEUE_SIZE = 1;
+    private static final int PERSIST_QUEUE_SIZE = 2;
+
     private final ConversationStore conversationStore;
     private final ProtocolStore protocolStore;
+    private final PreKeyManager preKeyManager;
     private final SignalServiceMessageReceiver messageReceiver;
     private final HDWallet wallet;
+    private final PipelineStage<SignalServiceEnvelope> decryptStage;
+    private final PipelineStage<DecryptedSignalMessage> resolveStage;
+    private final PipelineStage<IncomingMessage> persistStage;
 
     private SignalServiceMessagePipe messagePipe;
+    private Thread receiveThread;
     private boolean isReceivingMessages;
 
     public SofaMessageReceiver(@NonNull final HDWallet wallet,
                                @NonNull final ProtocolStore protocolStore,
+                               @NonNull final PreKeyManager preKeyManager,
                                @NonNull final ConversationStore conversationStore,
                                @NonNull final SignalServiceUrl[] urls) {
         this.wallet = wallet;
         this.protocolStore = protocolStore;
+        this.preKeyManager = preKeyManager;
         this.conversationStore = conversationStore;
 
         this.messageReceiver =
@@ -96,8 +117,14 @@ public class SofaMessageReceiver {
                         this.protocolStore.getPassword(),
                         this.protocolStore.getSignalingKey(),
                         USER_AGENT);
+
+        this.persistStage = new PipelineStage<>("Persist", 1, PERSIST_QUEUE_SIZE, this::persistAndNotify).start();
+        this.resolveStage = new PipelineStage<>("Resolve", RESOLVE_WORKERS, RESOLVE_QUEUE_SIZE, this::resolveAndPersist).start();
+        this.decryptStage = new PipelineStage<>("Decrypt", 1, DECRYPT_QUEUE_SIZE, this::decryptAndResolve).start();
     }
 
+    // Reading from the socket only hands the envelope over to the decrypt stage,
+    // so a slow attachment download doesn't stop more messages from being read.
     public void receiveMessagesAsync() {
         if (this.isReceivingMessages) {
             // Already running.
@@ -105,41 +132,100 @@ public class SofaMessageReceiver {
         }
 
         this.isReceivingMessages = true;
-        new Thread(() -> {
+        this.receiveThread = new Thread(() -> {
             while (isReceivingMessages) {
                 try {
-                    final DecryptedSignalMessage signalMessage = fetchLatestMessage();
-                    ChatNotificationManager.showNotification(signalMessage);
-                } catch (TimeoutException e) {
+                    final SignalServiceEnvelope envelope = readEnvelope();
+                    this.decryptStage.submit(null, envelope);
+                } catch (final TimeoutException e) {
                     // Nop -- this is expected to happen
+                } catch (final InterruptedException e) {
+                    return;
+                } catch (final IllegalStateException | IOException e) {
+                    LogUtil.exception(getClass(), "Error while reading message", e);
                 }
             }
-        }).start();
+        });
+        this.receiveThread.start();
     }
 
+    // Reads, decrypts and stores a single message on the calling thread.
     public DecryptedSignalMessage fetchLatestMessage() throws TimeoutException {
+        final SignalServiceEnvelope envelope;
+        try {
+            envelope = readEnvelope();
+        } catch (final TimeoutException ex) {
+            throw new TimeoutException(ex.getMessage());
+        } catch (final IllegalStateException | IOException e) {
+            LogUtil.exception(getClass(), "Error while fetching latest message", e);
+            return null;
+        }
+
+        final DecryptedSignalMessage signalMessage = decrypt(envelope);
+        if (signalMessage == null) return null;
+
+        final IncomingMessage incomingMessage = resolve(signalMessage);
+        if (incomingMessage == null) return null;
+
+        persist(incomingMessage);
+        return signalMessage;
+    }
+
+    private SignalServiceEnvelope readEnvelope() throws TimeoutException, IOException {
         if (this.messagePipe == null) {
             this.messagePipe = messageReceiver.createMessagePipe();
         }
+        return this.messagePipe.read(10, TimeUnit.SECONDS);
+    }
+
+    // Pipeline stages
+
+    private void decryptAndResolve(final SignalServiceEnvelope envelope) throws InterruptedException {
+        final DecryptedSignalMessage signalMessage = decrypt(envelope);
+        if (signalMessage == null) return;
+        this.resolveStage.submit(signalMessage.getSource(), signalMessage);
+    }
 
+    private void resolveAndPersist(final DecryptedSignalMessage signalMessage) throws InterruptedException {
+        final IncomingMessage incomingMessage = resolve(signalMessage);
+        if (incomingMessage == null) return;
+        this.persistStage.submit(signalMessage.getSource(), incomingMessage);
+    }
+
+    private void persistAndNotify(final IncomingMessage incomingMessage) {
+        persist(incomingMessage);
+        ChatNotificationManager.showNotification(incomingMessage.signalMessage);
+    }
+
+    // Throughput and latency of each receive stage, in pipeline order
+    public List<MetricsCounter> getStageMetrics() {
+        return Arrays.asList(
+                this.decryptStage.getMetrics(),
+                this.resolveStage.getMetrics(),
+                this.persistStage.getMetrics());
+    }
+
+    // Number of messages that have been read from the socket but not stored yet
+    public int getQueueDepth() {
+        return this.decryptStage.getQueueDepth()
+                + this.resolveStage.getQueueDepth()
+                + this.persistStage.getQueueDepth();
+    }
+
+    private DecryptedSignalMessage decrypt(final SignalServiceEnvelope envelope) {
         try {
-            final SignalServiceEnvelope envelope = messagePipe.read(10, TimeUnit.SECONDS);
             return decryptIncomingSignalServiceEnvelope(envelope);
-        } catch (final TimeoutException ex) {
-            throw new TimeoutException(ex.getMessage());
-        } catch (final IllegalStateException | InvalidKeyException | InvalidKeyIdException | DuplicateMessageException | InvalidVersionException | LegacyMessageException | InvalidMessageException | NoSessionException | org.whispersystems.libsignal.UntrustedIdentityException | IOException e) {
-            LogUtil.exception(getClass(), "Error while fetching latest message", e);
+        } catch (final IllegalStateException | InvalidKeyException | InvalidKeyIdException | DuplicateMessageException | InvalidVersionException | LegacyMessageException | InvalidMessageException | NoSessionException | org.whispersystems.libsignal.UntrustedIdentityException e) {
+            LogUtil.exception(getClass(), "Error while decrypting message", e);
         }
         return null;
     }
 
     private DecryptedSignalMessage decryptIncomingSignalServiceEnvelope(final SignalServiceEnvelope envelope) throws InvalidVersionException, InvalidMessageException, InvalidKeyException, DuplicateMessageException, InvalidKeyIdException, org.whispersystems.libsignal.UntrustedIdentityException, LegacyMessageException, NoSessionException {
-        // ToDo -- When do we need to create new keys?
- /*       if (envelope.getType() == SignalServiceProtos.Envelope.Type.PREKEY_BUNDLE_VALUE) {
-            // New keys need to be registered with the server.
-            registerWithServer();
-            return;
-        }*/
+        // The sender has used up one of our one-time prekeys
+        if (envelope.getType() == SignalServiceProtos.Envelope.Type.PREKEY_BUNDLE_VALUE) {
+            this.preKeyManager.onPreKeyUsed();
+        }
         return handleIncomingSofaMessage(envelope);
     }
 
@@ -149,14 +235,9 @@ public class SofaMessageReceiver {
         final SignalServiceContent content = cipher.decrypt(envelope);
         final String messageSource = envelope.getSource();
 
-        if (isUserBlocked(messageSource)) {
-            LogUtil.i(getClass(), "A blocked user is trying to send a message");
-            return null;
-        }
-
         if (content.getDataMessage().isPresent()) {
             final SignalServiceDataMessage dataMessage = content.getDataMessage().get();
-            if (dataMessage.isGroupUpdate()) return handleGroupUpdate(dataMessage);
+            if (dataMessage.isGroupUpdate()) return handleGroupUpdate(messageSource, dataMessage);
             else return handleTextMessage(messageSource, dataMessage);
         }
         return null;
@@ -167,13 +248,15 @@ public class SofaMessageReceiver {
         final Optional<SignalServiceGroup> signalGroup = dataMessage.getGroupInfo();
         final Optional<String> messageBody = dataMessage.getBody();
         final Optional<List<SignalServiceAttachment>> attachments = dataMessage.getAttachments();
-        final DecryptedSignalMessage decryptedMessage = new DecryptedSignalMessage(messageSource, messageBody.get(), attachments, signalGroup);
-
-        saveIncomingMessageToDatabase(decryptedMessage);
-        return decryptedMessage;
+        return new DecryptedSignalMessage(messageSource, messageBody.get(), attachments, signalGroup);
     }
 
-    private DecryptedSignalMessage handleGroupUpdate(final SignalServiceDataMessage dataMessage) {
+    private DecryptedSignalMessage handleGroupUpdate(final String messageSource, final SignalServiceDataMessage dataMessage) {
+        if (isUserBlocked(messageSource)) {
+            LogUtil.i(getClass(), "A blocked user is trying to update a group");
+            return null;
+        }
+
         final SignalServiceGroup signalGroup = dataMessage.getGroupInfo().get();
         new Group()
                 .initFromSignalGroup(signalGroup)
@@ -193,22 +276,44 @@ public class SofaMessageReceiver {
                 .value();
     }
 
-    private void saveIncomingMessageToDatabase(final DecryptedSignalMessage signalMessage) {
-        if (signalMessage == null || signalMessage.getBody() == null || signalMessage.getSource() == null) {
+    // Checks the sender, downloads any attachment and looks up the sender and recipient.
+    // Returns null if the message shouldn't be stored.
+    @Nullable
+    private IncomingMessage resolve(final DecryptedSignalMessage signalMessage) {
+        if (signalMessage.getBody() == null || signalMessage.getSource() == null) {
             LogUtil.w(getClass(), "Attempt to save invalid DecryptedSignalMessage to database.");
-            return;
+            return null;
         }
 
-        processAttachments(signalMessage);
+        if (isUserBlocked(signalMessage.getSource())) {
+            LogUtil.i(getClass(), "A blocked user is trying to send a message");
+            return null;
+        }
 
-        BaseApplication
-                .get()
-                .getRecipientManager()
-                .getUserFromTokenId(signalMessage.getSource())
-                .subscribe(
-                        (sender) -> this.saveIncomingMessageToDatabase(sender, signalMessage),
-                        ex -> LogUtil.e(getClass(), "Error getting user. " + ex)
-                );
+        try {
+            processAttachments(signalMessage);
+
+            final User sender = BaseApplication
+                    .get()
+                    .getRecipientManager()
+                    .getUserFromTokenId(signalMessage.getSource())
+                    .toBlocking()
+                    .value();
+
+            final SofaMessage remoteMessage = new SofaMessage()
+                    .makeNew(sender, signalMessage.getBody())
+                    .setAttachmentFilePath(signalMessage.getAttachmentFilePath())
+                    .setSendState(SendState.STATE_RECEIVED);
+
+            final Recipient senderRecipient = generateRecipientFromSignalMessage(sender, signalMessage)
+                    .toBlocking()
+                    .value();
+
+            return new IncomingMessage(signalMessage, sender, remoteMessage, senderRecipient);
+        } catch (final RuntimeException ex) {
+            LogUtil.e(getClass(), "Error resolving incoming message. " + ex);
+            return null;
+        }
     }
 
     private void processAttachments(final DecryptedSignalMessage signalMessage) {
@@ -227,21 +332,18 @@ public class SofaMessageReceiver {
     private @Nullable
     String saveAttachmentToFile(final SignalServiceAttachmentPointer attachment) {
         final FileUtil fileUtil = new FileUtil();
-        final File attachmentFile = fileUtil.writeAttachmentToFileFromMessageReceiver(attachment, this.messageReceiver);
+        final File attachmentFile = fileUtil
+                .downloadAttachment(attachment, this.messageReceiver)
+                .toBlocking()
+                .value();
         return attachmentFile != null ? attachmentFile.getAbsolutePath() : null;
     }
 
-    private void saveIncomingMessageToDatabase(final User sender, final DecryptedSignalMessage signalMessage) {
-        final SofaMessage remoteMessage = new SofaMessage()
-                .makeNew(sender, signalMessage.getBody())
-                .setAttachmentFilePath(signalMessage.getAttachmentFilePath())
-                .setSendState(SendState.STATE_RECEIVED);
-
-        generateRecipientFromSignalMessage(sender, signalMessage)
-                .subscribe(
-                        senderRecipient -> this.saveIncomingMessageToDatabase(sender, remoteMessage, senderRecipient),
-                        ex -> LogUtil.e(getClass(), "Error saving incoming message to database. " + ex)
-                );
+    private void persist(final IncomingMessage incomingMessage) {
+        saveIncomingMessageToDatabase(
+                incomingMessage.sender,
+                incomingMessage.remoteMessage,
+                incomingMessage.senderRecipient);
     }
 
     private void saveIncomingMessageToDatabase(final User sender, final SofaMessage remoteMessage, final Recipient senderRecipient) {
@@ -318,6 +420,8 @@ public class SofaMessageReceiver {
         return Single.just(remoteMessage.getPayloadWithHeaders());
     }
 
+    // Messages that have already been read keep moving through the pipeline,
+    // only reading from the socket is stopped.
     public void shutdown() {
         this.isReceivingMessages = false;
         if (this.messagePipe != null) {
@@ -325,4 +429,34 @@ public class SofaMessageReceiver {
             this.messagePipe = null;
         }
     }
+
+    // Stops reading and the pipeline threads, for when the receiver won't be used again.
+    // Messages that are still in the pipeline are dropped.
+    public void stop() {
+        shutdown();
+        if (this.receiveThread != null) {
+            this.receiveThread.interrupt();
+            this.receiveThread = null;
+        }
+        this.decryptStage.stop();
+        this.resolveStage.stop();
+        this.persistStage.stop();
+    }
+
+    private static class IncomingMessage {
+        private final DecryptedSignalMessage signalMessage;
+        private final User sender;
+        private final SofaMessage remoteMessage;
+        private final Recipient senderRecipient;
+
+        private IncomingMessage(final DecryptedSignalMessage signalMessage,
+                                final User sender,
+                                final SofaMessage remoteMessage,
+                                final Recipient senderRecipient) {
+            this.signalMessage = signalMessage;
+            this.sender = sender;
+            this.remoteMessage = remoteMessage;
+            this.senderRecipient = senderRecipient;
+        }
+    }
 }
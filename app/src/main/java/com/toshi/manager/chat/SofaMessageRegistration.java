@@ -49,17 +49,20 @@ public class SofaMessageRegistration {
     private final SharedPreferences sharedPreferences;
     private final ChatService chatService;
     private final ProtocolStore protocolStore;
+    private final PreKeyManager preKeyManager;
     private String gcmToken;
 
     public SofaMessageRegistration(
             final SharedPreferences sharedPreferences,
             final ChatService chatService,
-            final ProtocolStore protocolStore) {
+            final ProtocolStore protocolStore,
+            final PreKeyManager preKeyManager) {
         this.sharedPreferences = sharedPreferences;
         this.chatService = chatService;
         this.protocolStore = protocolStore;
+        this.preKeyManager = preKeyManager;
 
-        if (this.sharedPreferences == null || this.chatService == null || this.protocolStore == null) {
+        if (this.sharedPreferences == null || this.chatService == null || this.protocolStore == null || this.preKeyManager == null) {
             throw new NullPointerException("Initialised with null");
         }
     }
@@ -75,13 +78,18 @@ public class SofaMessageRegistration {
         } else {
             tryRegisterGcm();
             tryTriggerOnboarding();
+            this.preKeyManager.refreshIfNeeded();
             return Completable.complete();
         }
     }
 
+    // The prekeys are usually generated already, see PreKeyManager.prepareRegistration()
     private Completable registerWithServer() {
-        return this.chatService
-                .registerKeys(this.protocolStore)
+        return this.preKeyManager
+                .getRegistrationPreKeys()
+                .flatMapCompletable(preKeys -> this.chatService
+                        .registerKeys(this.protocolStore, preKeys)
+                        .doOnCompleted(() -> this.preKeyManager.onRegistered(preKeys)))
                 .doOnCompleted(SignalPreferences::setRegisteredWithServer)
                 .doOnCompleted(this::tryRegisterGcm)
                 .doOnCompleted(this::tryTriggerOnboarding);
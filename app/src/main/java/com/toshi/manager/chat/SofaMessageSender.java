@@ -24,6 +24,7 @@ import com.toshi.BuildConfig;
 import com.toshi.crypto.HDWallet;
 import com.toshi.crypto.signal.store.ProtocolStore;
 import com.toshi.exception.GroupCreationException;
+import com.toshi.manager.model.GroupDeliveryResult;
 import com.toshi.manager.model.SofaMessageTask;
 import com.toshi.manager.store.ConversationStore;
 import com.toshi.manager.store.PendingMessageStore;
@@ -34,6 +35,7 @@ import com.toshi.model.local.SendState;
 import com.toshi.model.sofa.OutgoingAttachment;
 import com.toshi.model.sofa.SofaMessage;
 import com.toshi.util.LogUtil;
+import com.toshi.util.MetricsCounter;
 import com.toshi.view.BaseApplication;
 
 import org.whispersystems.libsignal.SignalProtocolAddress;
@@ -53,23 +55,25 @@ import java.io.IOException;
 import java.util.List;
 
 import rx.Single;
-import rx.Subscription;
-import rx.schedulers.Schedulers;
-import rx.subjects.PublishSubject;
-import rx.subscriptions.CompositeSubscription;
 
 import static com.toshi.util.FileUtil.buildSignalServiceAttachment;
 
 public class SofaMessageSender {
 
     private final static String USER_AGENT = "Android " + BuildConfig.APPLICATION_ID + " - " + BuildConfig.VERSION_NAME +  ":" + BuildConfig.VERSION_CODE;
+    // Maximum number of conversations that can be sending at the same time
+    public static final int DEFAULT_SEND_PARALLELISM = 4;
+    // Maximum number of group members that are sent to at the same time
+    private static final int GROUP_FAN_OUT_PARALLELISM = 8;
+    private static final int GROUP_MAX_ATTEMPTS = 3;
+    private static final long GROUP_RETRY_DELAY_MS = 500;
 
-    private final CompositeSubscription subscriptions;
     private final ConversationStore conversationStore;
+    private final GroupFanOutSender groupSender;
     private final HDWallet wallet;
+    private final LaneExecutor sendLanes;
     private final PendingMessageStore pendingMessageStore;
     private final ProtocolStore protocolStore;
-    private final PublishSubject<SofaMessageTask> messageQueue;
     private final SignalServiceMessageSender signalMessageSender;
 
 
@@ -77,11 +81,18 @@ public class SofaMessageSender {
                              @NonNull final ProtocolStore protocolStore,
                              @NonNull final ConversationStore conversationStore,
                              @NonNull final SignalServiceUrl[] urls) {
+        this(wallet, protocolStore, conversationStore, urls, DEFAULT_SEND_PARALLELISM);
+    }
+
+    public SofaMessageSender(@NonNull final HDWallet wallet,
+                             @NonNull final ProtocolStore protocolStore,
+                             @NonNull final ConversationStore conversationStore,
+                             @NonNull final SignalServiceUrl[] urls,
+                             final int sendParallelism) {
         this.conversationStore = conversationStore;
-        this.messageQueue = PublishSubject.create();
+        this.sendLanes = new LaneExecutor(sendParallelism);
         this.pendingMessageStore = new PendingMessageStore();
         this.protocolStore = protocolStore;
-        this.subscriptions = new CompositeSubscription();
         this.wallet = wallet;
 
         this.signalMessageSender =
@@ -95,22 +106,23 @@ public class SofaMessageSender {
                         Optional.absent()
                 );
 
-        attachSubscriber();
+        this.groupSender = new GroupFanOutSender(
+                this.signalMessageSender,
+                this.protocolStore,
+                GROUP_FAN_OUT_PARALLELISM,
+                GROUP_MAX_ATTEMPTS,
+                GROUP_RETRY_DELAY_MS);
     }
 
-    private void attachSubscriber() {
-        final Subscription sub =
-                this.messageQueue
-                        .observeOn(Schedulers.io())
-                        .subscribeOn(Schedulers.io())
-                        .subscribe(
-                                this::processTask,
-                                this::handleMessageError
-                        );
-        this.subscriptions.add(sub);
+    private void processTask(final SofaMessageTask messageTask) {
+        try {
+            runTask(messageTask);
+        } catch (final RuntimeException ex) {
+            handleMessageError(ex);
+        }
     }
 
-    private void processTask(final SofaMessageTask messageTask) {
+    private void runTask(final SofaMessageTask messageTask) {
         switch (messageTask.getAction()) {
             case SofaMessageTask.SEND_AND_SAVE:
                 sendMessageToRecipient(messageTask, true);
@@ -131,11 +143,24 @@ public class SofaMessageSender {
     }
 
     private void handleMessageError(final Throwable throwable) {
-        LogUtil.exception(getClass(), "Message sending/receiving now broken due to this error", throwable);
+        LogUtil.exception(getClass(), "Error while processing message task", throwable);
     }
 
+    // Tasks are processed in order per conversation, while different conversations
+    // are processed concurrently. A slow send only holds up its own conversation.
     public void addNewTask(final SofaMessageTask messageTask) {
-        this.messageQueue.onNext(messageTask);
+        final String laneKey = messageTask.getReceiver().getThreadId();
+        this.sendLanes.execute(laneKey, () -> processTask(messageTask));
+    }
+
+    // Number of message tasks waiting to be processed
+    public int getQueueDepth() {
+        return this.sendLanes.getQueueDepth();
+    }
+
+    // Time from a task being queued until it was processed
+    public MetricsCounter getTaskMetrics() {
+        return this.sendLanes.getTaskMetrics();
     }
 
     public void sendPendingMessages() {
@@ -193,10 +218,17 @@ public class SofaMessageSender {
         }
 
         try {
-            sendToSignal(receiver.getGroup().getMemberAddresses(), messageTask);
+            final GroupDeliveryResult result = this.groupSender.send(
+                    receiver.getGroup().getMemberAddresses(),
+                    () -> buildMessage(messageTask),
+                    hasAttachment(messageTask));
+
+            if (result.hasFailures()) {
+                LogUtil.error(getClass(), "Unable to deliver group message to " + result.getFailed().size() + " member(s)");
+            }
 
             if (saveMessageToDatabase) {
-                message.setSendState(SendState.STATE_SENT);
+                message.setSendState(result.hasFailures() ? SendState.STATE_FAILED : SendState.STATE_SENT);
                 updateExistingMessage(receiver, message);
             }
         } catch (final IOException ex) {
@@ -205,11 +237,6 @@ public class SofaMessageSender {
                 message.setSendState(SendState.STATE_FAILED);
                 updateExistingMessage(receiver, message);
             }
-        } catch (final EncapsulatedExceptions e) {
-            for (UntrustedIdentityException uie : e.getUntrustedIdentityExceptions()) {
-                LogUtil.error(getClass(), "Keys have changed.");
-                protocolStore.saveIdentity(new SignalProtocolAddress(uie.getE164Number(), SignalServiceAddress.DEFAULT_DEVICE_ID), uie.getIdentityKey());
-            }
         }
     }
 
@@ -249,11 +276,6 @@ public class SofaMessageSender {
         }
     }
 
-    private void sendToSignal(final List<SignalServiceAddress> signalAddresses, final SofaMessageTask messageTask) throws IOException, EncapsulatedExceptions {
-        final SignalServiceDataMessage message = buildMessage(messageTask);
-        this.signalMessageSender.sendMessage(signalAddresses, message);
-    }
-
     private void sendToSignal(final String signalAddress, final SofaMessageTask messageTask) throws UntrustedIdentityException, IOException {
         final SignalServiceAddress receivingAddress = new SignalServiceAddress(signalAddress);
         final SignalServiceDataMessage message = buildMessage(messageTask);
@@ -282,6 +304,10 @@ public class SofaMessageSender {
 
     }
 
+    private boolean hasAttachment(final SofaMessageTask messageTask) {
+        return new OutgoingAttachment(messageTask.getSofaMessage()).isValid();
+    }
+
     private void tryAddAttachment(final SofaMessageTask messageTask, final SignalServiceDataMessage.Builder messageBuilder) {
         try {
             final OutgoingAttachment outgoingAttachment = new OutgoingAttachment(messageTask.getSofaMessage());
@@ -311,6 +337,7 @@ public class SofaMessageSender {
     }
 
     public void clear() {
-        this.subscriptions.clear();
+        this.sendLanes.shutdown();
+        this.groupSender.shutdown();
     }
 }
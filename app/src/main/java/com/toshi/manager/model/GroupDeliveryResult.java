@@ -0,0 +1,68 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.toshi.manager.model;
+
+
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class GroupDeliveryResult {
+
+    private final List<SignalServiceAddress> delivered;
+    private final List<SignalServiceAddress> failed;
+    private final List<SignalServiceAddress> unregistered;
+
+    public GroupDeliveryResult() {
+        this.delivered = new ArrayList<>();
+        this.failed = new ArrayList<>();
+        this.unregistered = new ArrayList<>();
+    }
+
+    public GroupDeliveryResult addDelivered(final SignalServiceAddress member) {
+        this.delivered.add(member);
+        return this;
+    }
+
+    public GroupDeliveryResult addFailed(final SignalServiceAddress member) {
+        this.failed.add(member);
+        return this;
+    }
+
+    public GroupDeliveryResult addUnregistered(final SignalServiceAddress member) {
+        this.unregistered.add(member);
+        return this;
+    }
+
+    public List<SignalServiceAddress> getDelivered() {
+        return this.delivered;
+    }
+
+    public List<SignalServiceAddress> getFailed() {
+        return this.failed;
+    }
+
+    // Members that are no longer registered with the chat server. Retrying won't help.
+    public List<SignalServiceAddress> getUnregistered() {
+        return this.unregistered;
+    }
+
+    public boolean hasFailures() {
+        return this.failed.size() > 0;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.network.interceptor;
+
+
+import com.toshi.crypto.cryptohash.Keccak256;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+
+// Discards everything written to it while keeping a running Keccak-256 of it,
+// so a request body can be hashed without holding all of it in memory.
+/* package */ class HashingSink implements Sink {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final Keccak256 digest;
+    private final byte[] chunk;
+
+    /* package */ HashingSink() {
+        this.digest = new Keccak256();
+        this.chunk = new byte[CHUNK_SIZE];
+    }
+
+    @Override
+    public void write(final Buffer source, final long byteCount) throws IOException {
+        long remaining = byteCount;
+        while (remaining > 0) {
+            final int read = source.read(this.chunk, 0, (int) Math.min(remaining, CHUNK_SIZE));
+            if (read == -1) throw new EOFException();
+            this.digest.update(this.chunk, 0, read);
+            remaining -= read;
+        }
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public Timeout timeout() {
+        return Timeout.NONE;
+    }
+
+    @Override
+    public void close() {}
+
+    /* package */ byte[] hash() {
+        return this.digest.digest();
+    }
+}
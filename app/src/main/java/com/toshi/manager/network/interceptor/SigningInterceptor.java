@@ -21,16 +21,20 @@ package com.toshi.manager.network.interceptor;
 import android.util.Base64;
 
 import com.toshi.crypto.HDWallet;
-import com.toshi.crypto.util.HashUtil;
 import com.toshi.view.BaseApplication;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import okhttp3.HttpUrl;
 import okhttp3.Interceptor;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
-import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
 
 public class SigningInterceptor implements Interceptor {
 
@@ -39,6 +43,10 @@ public class SigningInterceptor implements Interceptor {
     private final String SIGNATURE_HEADER = "Token-Signature";
     private final String TIMESTAMP_HEADER = "Token-Timestamp";
 
+    // Keyed on the body object itself; entries go away with the body
+    private static final Map<RequestBody, String> BODY_HASHES =
+            Collections.synchronizedMap(new WeakHashMap<RequestBody, String>());
+
     @Override
     public Response intercept(final Chain chain) throws IOException {
         final Request original = chain.request();
@@ -54,16 +62,11 @@ public class SigningInterceptor implements Interceptor {
             return chain.proceed(original);
         }
 
-        final Buffer buffer = new Buffer();
         final String method = original.method();
         final String path = original.url().encodedPath();
-        String encodedBody = "";
-        if (original.body() != null) {
-            original.body().writeTo(buffer);
-            final byte[] body = buffer.readByteArray();
-            final byte[] hashedBody = HashUtil.sha3(body);
-            encodedBody = Base64.encodeToString(hashedBody, Base64.NO_WRAP);
-        }
+        final String encodedBody = original.body() != null
+                ? getEncodedBodyHash(original.body())
+                : "";
 
         final String forSigning = method + "\n" + path + "\n" + timestamp + "\n" + encodedBody;
         final String signature = wallet.signIdentity(forSigning);
@@ -85,6 +88,21 @@ public class SigningInterceptor implements Interceptor {
         return chain.proceed(request);
     }
 
+    // Retried calls reuse the same body, so its hash is only calculated once
+    private String getEncodedBodyHash(final RequestBody body) throws IOException {
+        final String cachedHash = BODY_HASHES.get(body);
+        if (cachedHash != null) return cachedHash;
+
+        final HashingSink hashingSink = new HashingSink();
+        final BufferedSink sink = Okio.buffer(hashingSink);
+        body.writeTo(sink);
+        sink.close();
+
+        final String encodedHash = Base64.encodeToString(hashingSink.hash(), Base64.NO_WRAP);
+        BODY_HASHES.put(body, encodedHash);
+        return encodedHash;
+    }
+
     public HDWallet getWallet() {
             return BaseApplication
                     .get()
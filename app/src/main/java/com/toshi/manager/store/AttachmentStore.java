@@ -0,0 +1,213 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.store;
+
+
+import android.support.annotation.Nullable;
+
+import com.toshi.crypto.util.HexCodec;
+import com.toshi.model.sofa.SofaMessage;
+import com.toshi.util.LogUtil;
+import com.toshi.view.BaseApplication;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.realm.Realm;
+import io.realm.RealmResults;
+
+// Attachments are stored under the SHA-256 of their content, so a file that is received or sent
+// in several conversations is only kept once. A stored file is referenced by every SofaMessage
+// whose attachmentFilePath points at it, and is deleted once no message points at it any more.
+public class AttachmentStore {
+
+    private static final String DIRECTORY_NAME = "attachments";
+    private static final String ATTACHMENT_PATH_FIELD = "attachmentFilePath";
+    private static final String PRIMARY_KEY_FIELD = "privateKey";
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    // A file that was just stored may not be referenced by a saved message yet
+    private static final long GARBAGE_COLLECTION_GRACE_PERIOD = TimeUnit.HOURS.toMillis(1);
+
+    private static final Object STORE_LOCK = new Object();
+
+    private final File directory;
+
+    public AttachmentStore() {
+        this.directory = new File(BaseApplication.get().getFilesDir(), DIRECTORY_NAME);
+    }
+
+    // A file inside the store to download into before the content, and so its name, is known.
+    // Left over partial files are removed by collectGarbage().
+    public File createPartialFile(final long attachmentId) {
+        createDirectory();
+        return new File(this.directory, attachmentId + PARTIAL_FILE_SUFFIX);
+    }
+
+    // Takes ownership of the file and returns where its content is stored.
+    // If the same content is stored already, the file is deleted and the existing copy is returned.
+    public File store(final File file, @Nullable final String extension) throws IOException {
+        createDirectory();
+        final String digest = calculateDigest(file);
+        final String filename = extension == null || extension.isEmpty()
+                ? digest
+                : String.format("%s.%s", digest, extension);
+        final File storedFile = new File(this.directory, filename);
+
+        synchronized (STORE_LOCK) {
+            if (storedFile.exists()) {
+                file.delete();
+                // Restarts the grace period so a concurrent collectGarbage() keeps the file
+                storedFile.setLastModified(System.currentTimeMillis());
+                return storedFile;
+            }
+
+            if (!file.renameTo(storedFile)) {
+                throw new IOException("Unable to move " + file.getName() + " into the attachment store");
+            }
+        }
+        return storedFile;
+    }
+
+    // Deletes every stored file that no message refers to, and returns how many were deleted
+    public int collectGarbage() {
+        final File[] storedFiles = this.directory.listFiles();
+        if (storedFiles == null || storedFiles.length == 0) return 0;
+
+        final Set<String> referencedPaths = loadReferencedPaths();
+        int deleted = 0;
+        synchronized (STORE_LOCK) {
+            final long cutOff = System.currentTimeMillis() - GARBAGE_COLLECTION_GRACE_PERIOD;
+            for (final File storedFile : storedFiles) {
+                if (referencedPaths.contains(storedFile.getAbsolutePath())) continue;
+                if (storedFile.lastModified() > cutOff) continue;
+                if (storedFile.delete()) deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private Set<String> loadReferencedPaths() {
+        final Realm realm = BaseApplication.get().getRealm();
+        final RealmResults<SofaMessage> messages = realm
+                .where(SofaMessage.class)
+                .beginsWith(ATTACHMENT_PATH_FIELD, getDirectoryPath())
+                .findAll();
+        final Set<String> referencedPaths = new HashSet<>();
+        for (final SofaMessage message : messages) {
+            referencedPaths.add(message.getAttachmentFilePath());
+        }
+        realm.close();
+        return referencedPaths;
+    }
+
+    // Moves attachments that were saved before the store existed into it,
+    // and points the messages that use them at the stored copy.
+    public void migrateExistingAttachments() {
+        final Realm realm = BaseApplication.get().getRealm();
+        final RealmResults<SofaMessage> messages = realm
+                .where(SofaMessage.class)
+                .isNotNull(ATTACHMENT_PATH_FIELD)
+                .not()
+                .beginsWith(ATTACHMENT_PATH_FIELD, getDirectoryPath())
+                .findAll();
+
+        final List<String> messageKeys = new ArrayList<>(messages.size());
+        final Map<String, String> movedPaths = new HashMap<>();
+        for (final SofaMessage message : messages) {
+            final String oldPath = message.getAttachmentFilePath();
+            if (!movedPaths.containsKey(oldPath)) {
+                movedPaths.put(oldPath, moveIntoStore(oldPath));
+            }
+            messageKeys.add(message.getPrivateKey());
+        }
+
+        realm.beginTransaction();
+        for (final String messageKey : messageKeys) {
+            final SofaMessage message = realm
+                    .where(SofaMessage.class)
+                    .equalTo(PRIMARY_KEY_FIELD, messageKey)
+                    .findFirst();
+            final String newPath = movedPaths.get(message.getAttachmentFilePath());
+            if (newPath != null) {
+                message.setAttachmentFilePath(newPath);
+            }
+        }
+        realm.commitTransaction();
+        realm.close();
+    }
+
+    private @Nullable String moveIntoStore(final String path) {
+        final File file = new File(path);
+        if (!file.exists()) return null;
+
+        try {
+            return store(file, getExtension(file.getName())).getAbsolutePath();
+        } catch (final IOException ex) {
+            LogUtil.exception(getClass(), "Unable to move attachment into the store", ex);
+            return null;
+        }
+    }
+
+    private @Nullable String getExtension(final String filename) {
+        final int extensionStart = filename.lastIndexOf('.');
+        return extensionStart < 0 ? null : filename.substring(extensionStart + 1);
+    }
+
+    private String calculateDigest(final File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+
+        final InputStream inputStream = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return HexCodec.encode(digest.digest());
+    }
+
+    private String getDirectoryPath() {
+        return this.directory.getAbsolutePath() + File.separator;
+    }
+
+    private void createDirectory() {
+        if (!this.directory.exists()) {
+            this.directory.mkdir();
+        }
+    }
+}
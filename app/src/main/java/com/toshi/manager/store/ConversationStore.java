@@ -22,17 +22,25 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Pair;
 
+import com.toshi.manager.model.SofaMessageTask;
 import com.toshi.model.local.Conversation;
+import com.toshi.model.local.ConversationSummary;
 import com.toshi.model.local.Group;
+import com.toshi.model.local.MessagePage;
 import com.toshi.model.local.Recipient;
-import com.toshi.model.local.User;
 import com.toshi.model.sofa.SofaMessage;
 import com.toshi.util.LogUtil;
+import com.toshi.util.MetricsCounter;
 import com.toshi.view.BaseApplication;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import io.realm.Realm;
 import io.realm.RealmQuery;
@@ -51,8 +59,29 @@ public class ConversationStore {
     private static String watchedThreadId;
     private final static PublishSubject<SofaMessage> NEW_MESSAGE_SUBJECT = PublishSubject.create();
     private final static PublishSubject<SofaMessage> UPDATED_MESSAGE_SUBJECT = PublishSubject.create();
-    private final static PublishSubject<Conversation> CONVERSATION_CHANGED_SUBJECT = PublishSubject.create();
-    private final static ExecutorService dbThread = Executors.newSingleThreadExecutor();
+    private final static PublishSubject<ConversationSummary> CONVERSATION_CHANGED_SUBJECT = PublishSubject.create();
+    private final static ScheduledExecutorService dbThread = Executors.newSingleThreadScheduledExecutor();
+
+    // Saves and updates are queued and committed together in a single transaction,
+    // either once the batch window has passed or once the batch is full.
+    public static final long DEFAULT_BATCH_WINDOW_MS = 50;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+    private final long batchWindowMs;
+    private final int maxBatchSize;
+    private final Object pendingWritesLock = new Object();
+    private final MetricsCounter batchMetrics = new MetricsCounter("Message write batches");
+    private List<SofaMessageTask> pendingWrites = new ArrayList<>();
+    private boolean isFlushScheduled = false;
+
+    public ConversationStore() {
+        this(DEFAULT_BATCH_WINDOW_MS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public ConversationStore(final long batchWindowMs, final int maxBatchSize) {
+        this.batchWindowMs = batchWindowMs;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
 
     // Returns a pair of RxSubjects, the first being the observable for new messages
     // the second being the observable for updated messages.
@@ -65,7 +94,7 @@ public class ConversationStore {
         watchedThreadId = null;
     }
 
-    public Observable<Conversation> getConversationChangedObservable() {
+    public Observable<ConversationSummary> getConversationChangedObservable() {
         return CONVERSATION_CHANGED_SUBJECT
                 .filter(thread -> thread != null);
     }
@@ -83,83 +112,174 @@ public class ConversationStore {
     public void saveNewMessage(
             @NonNull final Recipient receiver,
             @NonNull final SofaMessage message) {
-        saveMessage(receiver, message)
-        .observeOn(Schedulers.immediate())
-        .subscribeOn(Schedulers.from(dbThread))
-        .subscribe(
-                conversationForBroadcast -> {
-                    broadcastNewChatMessage(receiver.getThreadId(), message);
-                    broadcastConversationChanged(conversationForBroadcast);
-                },
-                this::handleError
-        );
+        queueWrite(new SofaMessageTask(receiver, message, SofaMessageTask.SAVE_ONLY));
     }
 
-    private Single<Conversation> saveGroup(@NonNull final Group group) {
-        return Single.fromCallable(() -> {
-            final Conversation conversationToStore = getOrCreateConversation(group);
-            final Realm realm = BaseApplication.get().getRealm();
-            realm.beginTransaction();
-            final Conversation storedConversation = realm.copyToRealmOrUpdate(conversationToStore);
-            realm.commitTransaction();
-            final Conversation conversationForBroadcast = realm.copyFromRealm(storedConversation);
-            realm.close();
+    public void updateMessage(final Recipient receiver, final SofaMessage message) {
+        queueWrite(new SofaMessageTask(receiver, message, SofaMessageTask.UPDATE_MESSAGE));
+    }
 
-            return conversationForBroadcast;
-        });
+    // Batch sizes and commit latency of the queued message writes
+    public MetricsCounter getBatchMetrics() {
+        return this.batchMetrics;
     }
 
-    private Single<Conversation> saveMessage(
-            @NonNull final Recipient receiver,
-            @Nullable final SofaMessage message) {
-        return Single.fromCallable(() -> {
-            final Conversation conversationToStore = getOrCreateConversation(receiver);
+    private void queueWrite(final SofaMessageTask task) {
+        synchronized (this.pendingWritesLock) {
+            this.pendingWrites.add(task);
+            if (this.pendingWrites.size() >= this.maxBatchSize) {
+                dbThread.execute(this::flushPendingWrites);
+            } else if (!this.isFlushScheduled) {
+                this.isFlushScheduled = true;
+                dbThread.schedule(this::flushPendingWrites, this.batchWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void flushPendingWrites() {
+        final List<SofaMessageTask> batch;
+        synchronized (this.pendingWritesLock) {
+            batch = this.pendingWrites;
+            this.pendingWrites = new ArrayList<>();
+            this.isFlushScheduled = false;
+        }
+
+        if (batch.size() == 0) return;
 
-            if (message != null && shouldSaveTimestampMessage(message, conversationToStore)) {
-                final SofaMessage timestampMessage =
-                        generateTimestampMessage();
-                conversationToStore.addMessage(timestampMessage);
-                broadcastNewChatMessage(receiver.getThreadId(), timestampMessage);
+        try {
+            commitBatch(batch);
+        } catch (final Exception ex) {
+            handleError(ex);
+        }
+    }
+
+    // A write that fails cancels the whole transaction it is in, so each write
+    // gets its own, and only the one that fails is lost.
+    private void commitOneByOne(final List<SofaMessageTask> batch) {
+        for (final SofaMessageTask task : batch) {
+            try {
+                commitBatch(Collections.singletonList(task));
+            } catch (final Exception ex) {
+                handleError(ex);
             }
+        }
+    }
 
-            final Realm realm = BaseApplication.get().getRealm();
-            realm.beginTransaction();
+    // Writes the whole batch in one transaction. Listeners are only told
+    // about the changes once everything has been committed. If the transaction
+    // fails, the writes are retried one by one.
+    private void commitBatch(final List<SofaMessageTask> batch) {
+        final long startTime = System.nanoTime();
+        final List<Runnable> messageBroadcasts = new ArrayList<>(batch.size());
+        final Map<String, Conversation> changedConversations = new LinkedHashMap<>();
 
-            if (message != null) {
-                final SofaMessage storedMessage = realm.copyToRealmOrUpdate(message);
-                conversationToStore.setLatestMessage(storedMessage);
-                conversationToStore.setNumberOfUnread(calculateNumberOfUnread(conversationToStore));
+        final Realm realm = BaseApplication.get().getRealm();
+        realm.beginTransaction();
+        try {
+            for (final SofaMessageTask task : batch) {
+                final String threadId = task.getReceiver().getThreadId();
+                final SofaMessage message = task.getSofaMessage();
+
+                if (task.getAction() == SofaMessageTask.UPDATE_MESSAGE) {
+                    realm.insertOrUpdate(message);
+                    messageBroadcasts.add(() -> broadcastUpdatedChatMessage(threadId, message));
+                    continue;
+                }
+
+                final Conversation storedConversation = getOrCreateManagedConversation(realm, task.getReceiver());
+                final SofaMessage timestampMessage = saveMessage(realm, storedConversation, message);
+                if (timestampMessage != null) {
+                    messageBroadcasts.add(() -> broadcastNewChatMessage(threadId, timestampMessage));
+                }
+                messageBroadcasts.add(() -> broadcastNewChatMessage(threadId, message));
+                changedConversations.put(threadId, storedConversation);
             }
+            realm.commitTransaction();
+        } catch (final RuntimeException ex) {
+            realm.cancelTransaction();
+            realm.close();
+            if (batch.size() == 1) throw ex;
+            LogUtil.w(getClass(), "Writing a batch of " + batch.size() + " messages failed, writing them one by one");
+            commitOneByOne(batch);
+            return;
+        }
+        this.batchMetrics.record(batch.size(), System.nanoTime() - startTime);
+
+        final List<ConversationSummary> summaries = new ArrayList<>(changedConversations.size());
+        for (final Conversation storedConversation : changedConversations.values()) {
+            summaries.add(toSummary(realm, storedConversation));
+        }
+        realm.close();
 
-            final Conversation storedConversation = realm.copyToRealmOrUpdate(conversationToStore);
+        for (final Runnable broadcast : messageBroadcasts) {
+            broadcast.run();
+        }
+        for (final ConversationSummary summary : summaries) {
+            broadcastConversationChanged(summary);
+        }
+    }
+
+    private Single<ConversationSummary> saveGroup(@NonNull final Group group) {
+        return Single.fromCallable(() -> {
+            final Realm realm = BaseApplication.get().getRealm();
+            realm.beginTransaction();
+            // Updating the recipient in place keeps the existing messages untouched
+            final Recipient storedRecipient = realm.copyToRealmOrUpdate(new Recipient(group));
+            final Conversation storedConversation = getOrCreateManagedConversation(realm, storedRecipient);
             realm.commitTransaction();
-            final Conversation conversationForBroadcast = realm.copyFromRealm(storedConversation);
+            final ConversationSummary conversationForBroadcast = toSummary(realm, storedConversation);
             realm.close();
 
             return conversationForBroadcast;
         });
     }
 
-    @NonNull
-    private Conversation getOrCreateConversation(final User user) {
-        final Recipient recipient = new Recipient(user);
-        return getOrCreateConversation(recipient);
-    }
+    // Appends the message to the managed conversation, so the cost of saving
+    // a message doesn't depend on how many messages the thread already contains.
+    // Must be called inside a transaction. Returns the timestamp message if one was added.
+    @Nullable
+    private SofaMessage saveMessage(
+            final Realm realm,
+            @NonNull final Conversation storedConversation,
+            @NonNull final SofaMessage message) {
+        SofaMessage timestampMessage = null;
+        if (shouldSaveTimestampMessage(message, storedConversation)) {
+            timestampMessage = generateTimestampMessage();
+            storedConversation.addMessage(realm.copyToRealm(timestampMessage));
+        }
 
-    @NonNull
-    private Conversation getOrCreateConversation(final Group group) {
-        final Recipient recipient = new Recipient(group);
-        return getOrCreateConversation(recipient);
+        final SofaMessage storedMessage = realm.copyToRealmOrUpdate(message);
+        storedConversation.setLatestMessage(storedMessage);
+        storedConversation.setNumberOfUnread(calculateNumberOfUnread(storedConversation));
+        return timestampMessage;
     }
 
+    // Must be called inside a transaction
     @NonNull
-    private Conversation getOrCreateConversation(final Recipient recipient) {
-        final Conversation existingConversation = loadWhere(THREAD_ID_FIELD, recipient.getThreadId());
+    private Conversation getOrCreateManagedConversation(final Realm realm, final Recipient recipient) {
+        final Conversation existingConversation = realm
+                .where(Conversation.class)
+                .equalTo(THREAD_ID_FIELD, recipient.getThreadId())
+                .findFirst();
         return existingConversation == null
-                ? new Conversation(recipient)
+                ? realm.copyToRealmOrUpdate(new Conversation(recipient))
                 : existingConversation;
     }
 
+    // Only the recipient and the latest message are copied out of Realm,
+    // so the size of a summary doesn't depend on the length of the thread.
+    private ConversationSummary toSummary(final Realm realm, final Conversation storedConversation) {
+        final SofaMessage latestMessage = storedConversation.getLatestMessage() == null
+                ? null
+                : realm.copyFromRealm(storedConversation.getLatestMessage());
+        return new ConversationSummary(
+                storedConversation.getThreadId(),
+                realm.copyFromRealm(storedConversation.getRecipient()),
+                latestMessage,
+                storedConversation.getUpdatedTime(),
+                storedConversation.getNumberOfUnread());
+    }
+
     private SofaMessage generateTimestampMessage() {
         return new SofaMessage().makeNewTimeStampMessage();
     }
@@ -183,18 +303,22 @@ public class ConversationStore {
 
     private void resetUnreadMessageCounter(final String threadId) {
         Single.fromCallable(() -> {
-            final Conversation storedConversation = loadWhere(THREAD_ID_FIELD, threadId);
+            final Realm realm = BaseApplication.get().getRealm();
+            final Conversation storedConversation = realm
+                    .where(Conversation.class)
+                    .equalTo(THREAD_ID_FIELD, threadId)
+                    .findFirst();
             if (storedConversation == null) {
+                realm.close();
                 return null;
             }
 
-            final Realm realm = BaseApplication.get().getRealm();
             realm.beginTransaction();
             storedConversation.setNumberOfUnread(0);
-            realm.insertOrUpdate(storedConversation);
             realm.commitTransaction();
+            final ConversationSummary conversationForBroadcast = toSummary(realm, storedConversation);
             realm.close();
-            return storedConversation;
+            return conversationForBroadcast;
         })
         .observeOn(Schedulers.immediate())
         .subscribeOn(Schedulers.from(dbThread))
@@ -204,52 +328,61 @@ public class ConversationStore {
         );
     }
 
-    public List<Conversation> loadAll() {
+    public List<ConversationSummary> loadAllSummaries() {
         final Realm realm = BaseApplication.get().getRealm();
         final RealmQuery<Conversation> query = realm.where(Conversation.class);
         final RealmResults<Conversation> results = query.findAllSorted("updatedTime", Sort.DESCENDING);
-        final List<Conversation> allConversations = realm.copyFromRealm(results);
+        final List<ConversationSummary> allSummaries = new ArrayList<>(results.size());
+        for (final Conversation storedConversation : results) {
+            allSummaries.add(toSummary(realm, storedConversation));
+        }
         realm.close();
-        return allConversations;
+        return allSummaries;
     }
 
-    private void broadcastConversationChanged(final Conversation conversation) {
+    private void broadcastConversationChanged(final ConversationSummary conversation) {
         CONVERSATION_CHANGED_SUBJECT.onNext(conversation);
     }
 
-    public Single<Conversation> loadByThreadId(final String threadId) {
+    // Loads the newest page of messages in a thread and marks the thread as read.
+    public Single<MessagePage> loadLatestMessages(final String threadId, final int limit) {
         return Single.fromCallable(() -> {
             resetUnreadMessageCounter(threadId);
-            return loadWhere(THREAD_ID_FIELD, threadId);
+            return loadMessagesBefore(threadId, Integer.MAX_VALUE, limit);
         });
     }
 
-    private Conversation loadWhere(final String fieldName, final String value) {
+    // Loads at most limit messages from before the given position in the thread.
+    // The messages are returned in the order they were saved in, oldest first.
+    public Single<MessagePage> loadMessages(final String threadId,
+                                            final int beforeIndex,
+                                            final int limit) {
+        return Single.fromCallable(() -> loadMessagesBefore(threadId, beforeIndex, limit));
+    }
+
+    private MessagePage loadMessagesBefore(final String threadId,
+                                           final int beforeIndex,
+                                           final int limit) {
         final Realm realm = BaseApplication.get().getRealm();
-        final Conversation result = realm
+        final Conversation conversation = realm
                 .where(Conversation.class)
-                .equalTo(fieldName, value)
+                .equalTo(THREAD_ID_FIELD, threadId)
                 .findFirst();
-        final Conversation queriedConversation = result == null ? null : realm.copyFromRealm(result);
-        realm.close();
-        return queriedConversation;
-    }
 
-    public void updateMessage(final Recipient receiver, final SofaMessage message) {
-        Single.fromCallable(() -> {
-            final Realm realm = BaseApplication.get().getRealm();
-            realm.beginTransaction();
-            realm.insertOrUpdate(message);
-            realm.commitTransaction();
+        if (conversation == null || conversation.getAllMessages() == null) {
             realm.close();
-            return null;
-        })
-        .observeOn(Schedulers.immediate())
-        .subscribeOn(Schedulers.from(dbThread))
-        .subscribe(
-                __ -> broadcastUpdatedChatMessage(receiver.getThreadId(), message),
-                this::handleError
-        );
+            return new MessagePage(new ArrayList<>(0), 0);
+        }
+
+        // The position in the list is the order the messages were saved in. A timestamp message
+        // is created after the message it comes before, so sorting by time would misplace it.
+        // Only the requested page is copied out of Realm; the rest of the thread stays on disk.
+        final List<SofaMessage> allMessages = conversation.getAllMessages();
+        final int endIndex = Math.max(0, Math.min(beforeIndex, allMessages.size()));
+        final int startIndex = Math.max(0, endIndex - limit);
+        final List<SofaMessage> messages = realm.copyFromRealm(allMessages.subList(startIndex, endIndex));
+        realm.close();
+        return new MessagePage(messages, startIndex);
     }
 
     public boolean areUnreadMessages() {
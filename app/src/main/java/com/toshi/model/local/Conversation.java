@@ -22,8 +22,6 @@ import android.support.annotation.NonNull;
 
 import com.toshi.model.sofa.SofaMessage;
 
-import java.util.List;
-
 import io.realm.RealmList;
 import io.realm.RealmObject;
 import io.realm.annotations.PrimaryKey;
@@ -68,7 +66,11 @@ public class Conversation extends RealmObject {
     }
 
     private boolean isDuplicateMessage(final SofaMessage message) {
-        return this.allMessages != null && this.allMessages.contains(message);
+        if (this.allMessages == null) return false;
+        // A stored message knows which conversations it belongs to,
+        // so there's no need to scan every message in the thread.
+        if (message.isManaged()) return message.belongsTo(this.threadId);
+        return this.allMessages.contains(message);
     }
 
     public void addMessage(final SofaMessage latestMessage) {
@@ -79,7 +81,7 @@ public class Conversation extends RealmObject {
         this.allMessages.add(latestMessage);
     }
 
-    public List<SofaMessage> getAllMessages() {
+    public RealmList<SofaMessage> getAllMessages() {
         return allMessages;
     }
 
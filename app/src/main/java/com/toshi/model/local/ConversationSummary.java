@@ -0,0 +1,82 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.toshi.model.local;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.toshi.model.sofa.SofaMessage;
+
+// A read-only view of a Conversation that contains everything needed
+// to render it in a list, but none of the message history.
+public class ConversationSummary {
+
+    private final String threadId;
+    private final Recipient recipient;
+    private final SofaMessage latestMessage;
+    private final long updatedTime;
+    private final int numberOfUnread;
+
+    public ConversationSummary(final String threadId,
+                               final Recipient recipient,
+                               final SofaMessage latestMessage,
+                               final long updatedTime,
+                               final int numberOfUnread) {
+        this.threadId = threadId;
+        this.recipient = recipient;
+        this.latestMessage = latestMessage;
+        this.updatedTime = updatedTime;
+        this.numberOfUnread = numberOfUnread;
+    }
+
+    public String getThreadId() {
+        return this.threadId;
+    }
+
+    @NonNull
+    public Recipient getRecipient() {
+        return this.recipient;
+    }
+
+    @Nullable
+    public SofaMessage getLatestMessage() {
+        return this.latestMessage;
+    }
+
+    public long getUpdatedTime() {
+        return this.updatedTime;
+    }
+
+    public int getNumberOfUnread() {
+        return this.numberOfUnread;
+    }
+
+    @Override
+    public int hashCode() {
+        return threadId.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other){
+        if (other == null) return false;
+        if (other == this) return true;
+        if (!(other instanceof ConversationSummary))return false;
+        final ConversationSummary otherSummary = (ConversationSummary) other;
+        return otherSummary.getThreadId().equals(this.threadId);
+    }
+}
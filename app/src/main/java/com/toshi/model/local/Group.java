@@ -21,9 +21,9 @@ package com.toshi.model.local;
 import android.graphics.Bitmap;
 import android.support.annotation.NonNull;
 
+import com.toshi.crypto.util.HexCodec;
 import com.toshi.view.BaseApplication;
 
-import org.spongycastle.util.encoders.Hex;
 import org.whispersystems.signalservice.api.messages.SignalServiceGroup;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
@@ -65,7 +65,7 @@ public class Group extends RealmObject {
     }
 
     public Single<Group> initFromSignalGroup(final SignalServiceGroup group) {
-        this.id = Hex.toHexString(group.getGroupId());
+        this.id = HexCodec.encode(group.getGroupId());
         this.members = new RealmList<>();
 
         if (group.getName().isPresent()) {
@@ -107,7 +107,7 @@ public class Group extends RealmObject {
 
     @NonNull
     public byte[] getIdBytes() {
-        return Hex.decode(this.id);
+        return HexCodec.decode(this.id);
     }
 
     @NonNull
@@ -141,7 +141,7 @@ public class Group extends RealmObject {
         try {
             byte[] groupId = new byte[GROUP_ID_LENGTH / 2];
             SecureRandom.getInstance("SHA1PRNG").nextBytes(groupId);
-            return Hex.toHexString(groupId);
+            return HexCodec.encode(groupId);
         } catch (final NoSuchAlgorithmException e) {
             throw new AssertionError(e);
         }
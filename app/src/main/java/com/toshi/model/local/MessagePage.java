@@ -0,0 +1,53 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.model.local;
+
+
+import android.support.annotation.NonNull;
+
+import com.toshi.model.sofa.SofaMessage;
+
+import java.util.List;
+
+// A run of consecutive messages in a thread, oldest first. Messages are only ever
+// appended to a thread, so the position of a message never changes and can be
+// used to load the page before this one.
+public class MessagePage {
+
+    private final List<SofaMessage> messages;
+    private final int startIndex;
+
+    public MessagePage(@NonNull final List<SofaMessage> messages, final int startIndex) {
+        this.messages = messages;
+        this.startIndex = startIndex;
+    }
+
+    @NonNull
+    public List<SofaMessage> getMessages() {
+        return this.messages;
+    }
+
+    // The position in the thread of the first message in the page
+    public int getStartIndex() {
+        return this.startIndex;
+    }
+
+    public boolean hasPreviousMessages() {
+        return this.startIndex > 0;
+    }
+}
@@ -17,6 +17,7 @@
 
 package com.toshi.model.sofa;
 
+import com.toshi.model.local.Conversation;
 import com.toshi.model.local.SendState;
 import com.toshi.model.local.User;
 import com.toshi.util.ImageUtil;
@@ -26,6 +27,8 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import io.realm.RealmObject;
+import io.realm.RealmResults;
+import io.realm.annotations.LinkingObjects;
 import io.realm.annotations.PrimaryKey;
 
 public class SofaMessage extends RealmObject {
@@ -38,6 +41,8 @@ public class SofaMessage extends RealmObject {
     private String payload;
     private String attachmentFilePath;
     private User sender;
+    @LinkingObjects("allMessages")
+    private final RealmResults<Conversation> conversations = null;
 
     public SofaMessage() {
         this.creationTime = System.currentTimeMillis();
@@ -122,6 +127,15 @@ public class SofaMessage extends RealmObject {
         return this.attachmentFilePath != null;
     }
 
+    // Only works for managed messages; unmanaged messages don't know their conversations.
+    public boolean belongsTo(final String threadId) {
+        return this.conversations != null
+                && this.conversations
+                    .where()
+                    .equalTo("threadId", threadId)
+                    .count() > 0;
+    }
+
     private String cleanPayload(final String payload) {
         final String regexString = "\\{.*\\}";
         final Pattern pattern = Pattern.compile(regexString);
@@ -24,7 +24,7 @@ import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 
 import com.toshi.R;
-import com.toshi.model.local.Conversation;
+import com.toshi.model.local.ConversationSummary;
 import com.toshi.util.LogUtil;
 import com.toshi.util.UserSearchType;
 import com.toshi.view.BaseApplication;
@@ -43,7 +43,7 @@ import rx.subscriptions.CompositeSubscription;
 
 public final class RecentPresenter implements
         Presenter<RecentFragment>,
-        OnItemClickListener<Conversation> {
+        OnItemClickListener<ConversationSummary> {
 
     private RecentFragment fragment;
     private boolean firstTimeAttaching = true;
@@ -112,7 +112,7 @@ public final class RecentPresenter implements
         this.subscriptions.add(sub);
     }
 
-    private void handleConversations(final List<Conversation> conversations) {
+    private void handleConversations(final List<ConversationSummary> conversations) {
         this.adapter.setConversations(conversations);
         updateEmptyState();
     }
@@ -136,7 +136,7 @@ public final class RecentPresenter implements
         this.subscriptions.add(sub);
     }
 
-    private void handleConversation(final Conversation updatedConversation) {
+    private void handleConversation(final ConversationSummary updatedConversation) {
         this.adapter.updateConversation(updatedConversation);
         updateEmptyState();
     }
@@ -161,7 +161,7 @@ public final class RecentPresenter implements
     }
 
     @Override
-    public void onItemClick(final Conversation clickedConversation) {
+    public void onItemClick(final ConversationSummary clickedConversation) {
         if (this.fragment == null) return;
         final Intent intent = new Intent(this.fragment.getActivity(), ChatActivity.class);
         intent.putExtra(ChatActivity.EXTRA__THREAD_ID, clickedConversation.getThreadId());
@@ -23,6 +23,7 @@ import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
 import android.util.Pair;
 import android.view.View;
@@ -36,8 +37,8 @@ import com.toshi.R;
 import com.toshi.crypto.HDWallet;
 import com.toshi.exception.PermissionException;
 import com.toshi.model.local.ActivityResultHolder;
-import com.toshi.model.local.Conversation;
 import com.toshi.model.local.Group;
+import com.toshi.model.local.MessagePage;
 import com.toshi.model.local.PermissionResultHolder;
 import com.toshi.model.local.Recipient;
 import com.toshi.model.local.User;
@@ -69,6 +70,7 @@ import com.toshi.view.notification.ChatNotificationManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 import rx.Single;
 import rx.Subscription;
@@ -88,9 +90,14 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
     private static final int CAPTURE_IMAGE = 4;
     private static final int CONFIRM_ATTACHMENT = 5;
     private static final String CAPTURE_FILENAME = "caputureImageFilename";
+    private static final int MESSAGE_PAGE_SIZE = 50;
+    private static final int LOAD_MORE_THRESHOLD = 10;
 
     private boolean firstViewAttachment = true;
     private boolean isConversationLoaded = false;
+    private boolean hasMorePreviousMessages = false;
+    private boolean isLoadingPreviousMessages = false;
+    private int oldestLoadedMessageIndex = Integer.MAX_VALUE;
     private ChatActivity activity;
     private ChatNavigation chatNavigation;
     private CompositeSubscription subscriptions;
@@ -247,9 +254,20 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
 
         // Hack to scroll to bottom when keyboard rendered
         this.activity.getBinding().messagesList.addOnLayoutChangeListener((v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> handleLayoutChanged(bottom, oldBottom));
+        this.activity.getBinding().messagesList.addOnScrollListener(this.onScrollListener);
         this.activity.getBinding().messagesList.getLayoutManager().scrollToPosition(this.lastVisibleMessagePosition);
     }
 
+    private final RecyclerView.OnScrollListener onScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(final RecyclerView recyclerView, final int dx, final int dy) {
+            // Only load older messages when the user is scrolling upwards
+            if (dy >= 0 || layoutManager == null) return;
+            if (layoutManager.findFirstVisibleItemPosition() > LOAD_MORE_THRESHOLD) return;
+            tryLoadPreviousMessages();
+        }
+    };
+
     private void handleLayoutChanged(final int bottom,
                                      final int oldBottom) {
         if (this.activity == null || this.messageAdapter.getItemCount() <= 0) return;
@@ -592,7 +610,7 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
                 BaseApplication
                 .get()
                 .getSofaMessageManager()
-                .loadConversation(this.recipient.getThreadId())
+                .loadLatestMessages(this.recipient.getThreadId(), MESSAGE_PAGE_SIZE)
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(
                         this::handleConversationLoaded,
@@ -601,36 +619,74 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
         this.subscriptions.add(conversationLoadedSub);
     }
 
-    private void handleConversationLoaded(final Conversation conversation) {
-        initConversation(conversation);
+    private void handleConversationLoaded(final MessagePage latestPage) {
+        initConversation(latestPage);
         updateEmptyState();
         tryClearMessageSubscriptions();
         initMessageObservables();
         this.isConversationLoaded = true;
     }
 
-    private void initConversation(final Conversation conversation) {
+    private void initConversation(final MessagePage latestPage) {
         initConversationRecipient();
-        initConversationMessages(conversation);
+        initConversationMessages(latestPage);
     }
 
     private void initConversationRecipient() {
         this.messageAdapter.setRecipient(this.recipient);
     }
 
-    private void initConversationMessages(final Conversation conversation) {
-        final boolean shouldAddMessages = conversation != null && conversation.getAllMessages() != null && conversation.getAllMessages().size() > 0;
+    private void initConversationMessages(final MessagePage latestPage) {
+        this.isLoadingPreviousMessages = false;
+        updatePagingState(latestPage);
+
+        final List<SofaMessage> latestMessages = latestPage.getMessages();
+        final boolean shouldAddMessages = latestMessages.size() > 0;
         if (shouldAddMessages) {
-            this.messageAdapter.setMessages(conversation.getAllMessages());
+            this.messageAdapter.setMessages(latestMessages);
             scrollToPosition(getSafePosition());
 
-            final SofaMessage lastSofaMessage = conversation.getAllMessages().get(conversation.getAllMessages().size() - 1);
+            final SofaMessage lastSofaMessage = latestMessages.get(latestMessages.size() - 1);
             setControlView(lastSofaMessage);
         } else {
             tryInitAppConversation();
         }
     }
 
+    private void updatePagingState(final MessagePage loadedPage) {
+        this.hasMorePreviousMessages = loadedPage.hasPreviousMessages();
+        this.oldestLoadedMessageIndex = Math.min(this.oldestLoadedMessageIndex, loadedPage.getStartIndex());
+    }
+
+    private void tryLoadPreviousMessages() {
+        if (!this.isConversationLoaded || !this.hasMorePreviousMessages || this.isLoadingPreviousMessages) return;
+        this.isLoadingPreviousMessages = true;
+
+        final Subscription sub =
+                BaseApplication
+                .get()
+                .getSofaMessageManager()
+                .loadMessages(this.recipient.getThreadId(), this.oldestLoadedMessageIndex, MESSAGE_PAGE_SIZE)
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(
+                        this::handlePreviousMessagesLoaded,
+                        this::handlePreviousMessagesLoadFailed
+                );
+
+        this.subscriptions.add(sub);
+    }
+
+    private void handlePreviousMessagesLoaded(final MessagePage previousPage) {
+        this.isLoadingPreviousMessages = false;
+        updatePagingState(previousPage);
+        this.messageAdapter.addPreviousMessages(previousPage.getMessages());
+    }
+
+    private void handlePreviousMessagesLoadFailed(final Throwable throwable) {
+        this.isLoadingPreviousMessages = false;
+        handleError(throwable);
+    }
+
     private void tryInitAppConversation() {
         if (this.recipient.isGroup() || !this.recipient.getUser().isApp()) return;
 
@@ -753,7 +809,8 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
 
     // Returns last known scroll position, or last position if unknown
     private int getSafePosition() {
-        if (this.lastVisibleMessagePosition > 0) return this.lastVisibleMessagePosition;
+        final boolean isLastVisiblePositionLoaded = this.lastVisibleMessagePosition < this.messageAdapter.getItemCount();
+        if (this.lastVisibleMessagePosition > 0 && isLastVisiblePositionLoaded) return this.lastVisibleMessagePosition;
         if (this.messageAdapter.getItemCount() - 1 > 0) return this.messageAdapter.getItemCount() - 1;
         return 0;
     }
@@ -856,6 +913,7 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
 
     private void sendMediaMessage(final SofaMessage sofaMessage) {
         Single.fromCallable(() -> {
+            storeAttachment(sofaMessage);
             while (!this.isConversationLoaded) {
                 Thread.sleep(50);
             }
@@ -868,6 +926,17 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
         );
     }
 
+    // If the attachment can't be moved to the attachment store,
+    // the message is sent with the attachment where it is.
+    private void storeAttachment(final SofaMessage sofaMessage) {
+        try {
+            final File storedFile = new FileUtil().moveToAttachmentStore(new File(sofaMessage.getAttachmentFilePath()));
+            sofaMessage.setAttachmentFilePath(storedFile.getAbsolutePath());
+        } catch (final IOException ex) {
+            LogUtil.exception(getClass(), "Unable to store attachment, sending it from its original location", ex);
+        }
+    }
+
     private void handleError(final Throwable throwable) {
         LogUtil.exception(getClass(), throwable);
     }
@@ -878,6 +947,8 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
         this.subscriptions.clear();
         this.messageAdapter.clear();
         this.isConversationLoaded = false;
+        this.isLoadingPreviousMessages = false;
+        this.oldestLoadedMessageIndex = Integer.MAX_VALUE;
         this.activity = null;
     }
 
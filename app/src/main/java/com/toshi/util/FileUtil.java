@@ -28,6 +28,7 @@ import android.support.v4.content.FileProvider;
 import android.webkit.MimeTypeMap;
 
 import com.toshi.BuildConfig;
+import com.toshi.manager.store.AttachmentStore;
 import com.toshi.model.local.Attachment;
 import com.toshi.model.sofa.OutgoingAttachment;
 import com.toshi.view.BaseApplication;
@@ -46,13 +47,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.RandomAccessFile;
 import java.util.UUID;
+import java.util.concurrent.Executors;
 
 import okio.BufferedSink;
 import okio.Okio;
 import okio.Source;
+import rx.Scheduler;
 import rx.Single;
 import rx.schedulers.Schedulers;
 
@@ -63,6 +65,12 @@ public class FileUtil {
     public static final int MAX_SIZE = 1024 * 1024;
     public static final String FILE_PROVIDER_NAME = ".fileProvider";
 
+    private static final int MAX_ATTACHMENT_SIZE = 20 * 1024 * 1024;
+    private static final int MAX_CONCURRENT_DOWNLOADS = 3;
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+    private static final Scheduler ATTACHMENT_DOWNLOAD_SCHEDULER =
+            Schedulers.from(Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS));
+
     public Single<File> saveFileFromUri(final Context context, final Uri uri) {
         return Single.fromCallable(() -> {
             final String mimeType = context.getContentResolver().getType(uri);
@@ -86,42 +94,66 @@ public class FileUtil {
         return file;
     }
 
+    // Downloads run on a small pool of their own, so one large attachment
+    // doesn't hold up the others and the number of open connections is bounded.
+    public Single<File> downloadAttachment(
+            final SignalServiceAttachmentPointer attachment,
+            final SignalServiceMessageReceiver messageReceiver) {
+        return Single.fromCallable(() -> writeAttachmentToFileFromMessageReceiver(attachment, messageReceiver))
+                .subscribeOn(ATTACHMENT_DOWNLOAD_SCHEDULER);
+    }
+
     public @Nullable File writeAttachmentToFileFromMessageReceiver(
             final SignalServiceAttachmentPointer attachment,
             final SignalServiceMessageReceiver messageReceiver) {
-        File file = null;
+        final AttachmentStore attachmentStore = new AttachmentStore();
+        File partFile = null;
         try {
-            final String tempName = String.format("%d", attachment.getId());
-            file = new File(BaseApplication.get().getCacheDir(), tempName);
-            final int maxFileSize = 20 * 1024 * 1024;
-            final InputStream inputStream = messageReceiver.retrieveAttachment(attachment, file, maxFileSize);
+            partFile = attachmentStore.createPartialFile(attachment.getId());
 
-            final File destFile = constructAttachmentFile(attachment.getContentType());
-            return writeToFileFromInputStream(destFile, inputStream);
+            // The encrypted attachment is downloaded into the attachment store and decrypted in place,
+            // so there is only ever one copy of it on disk.
+            final InputStream inputStream = messageReceiver.retrieveAttachment(attachment, partFile, MAX_ATTACHMENT_SIZE);
+            decryptInPlace(inputStream, partFile);
+
+            final String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(attachment.getContentType());
+            final File storedFile = attachmentStore.store(partFile, extension);
+            partFile = null;
+            return storedFile;
         } catch (IOException | InvalidMessageException e) {
             LogUtil.exception(getClass(), "Error during writing attachment to file", e);
             return null;
         } finally {
-            if (file != null) {
-                file.delete();
+            if (partFile != null) {
+                partFile.delete();
             }
         }
     }
 
-    private File constructAttachmentFile(final String contentType) throws IOException {
-        final File baseDirectory = BaseApplication.get().getFilesDir();
-        final String directoryPath = contentType.startsWith("image/") ? "images" : "files";
-        final File outputDirectory = new File(baseDirectory, directoryPath);
-
-        if (!outputDirectory.exists()) {
-            outputDirectory.mkdir();
+    // A block of plaintext is only available once the cipher has read the whole block of
+    // ciphertext it comes from, so writing the plaintext from the start of the same file
+    // never overwrites ciphertext that hasn't been read yet.
+    private void decryptInPlace(final InputStream plaintext, final File file) throws IOException {
+        final RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long written = 0;
+            int read;
+            while ((read = plaintext.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+                written += read;
+            }
+            output.setLength(written);
+        } finally {
+            plaintext.close();
+            output.close();
         }
+    }
 
-        final String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(contentType);
-        final SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd-HHmmss");
-        final String baseName = dateFormatter.format(new Date());
-        final String filename = String.format("%s.%s", baseName, extension);
-        return new File(outputDirectory, filename);
+    // The file is moved, and deleted if the same content is stored already
+    public File moveToAttachmentStore(final File file) throws IOException {
+        final String extension = MimeTypeMap.getFileExtensionFromUrl(file.getName());
+        return new AttachmentStore().store(file, extension);
     }
 
     public File createImageFileWithRandomName() {
@@ -0,0 +1,105 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.toshi.util;
+
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Thread safe counter for how often something happened, how many items
+// were processed each time, and how long it took.
+public class MetricsCounter {
+
+    private final String name;
+    private final AtomicLong count;
+    private final AtomicLong totalItems;
+    private final AtomicLong maxItems;
+    private final AtomicLong totalDurationNanos;
+    private final AtomicLong maxDurationNanos;
+
+    public MetricsCounter(final String name) {
+        this.name = name;
+        this.count = new AtomicLong();
+        this.totalItems = new AtomicLong();
+        this.maxItems = new AtomicLong();
+        this.totalDurationNanos = new AtomicLong();
+        this.maxDurationNanos = new AtomicLong();
+    }
+
+    public void record(final long numberOfItems, final long durationNanos) {
+        this.count.incrementAndGet();
+        this.totalItems.addAndGet(numberOfItems);
+        this.totalDurationNanos.addAndGet(durationNanos);
+        updateMax(this.maxItems, numberOfItems);
+        updateMax(this.maxDurationNanos, durationNanos);
+    }
+
+    private void updateMax(final AtomicLong currentMax, final long value) {
+        long max = currentMax.get();
+        while (value > max && !currentMax.compareAndSet(max, value)) {
+            max = currentMax.get();
+        }
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    public long getTotalItems() {
+        return this.totalItems.get();
+    }
+
+    public long getMaxItems() {
+        return this.maxItems.get();
+    }
+
+    public double getAverageItems() {
+        final long count = this.count.get();
+        return count == 0 ? 0 : (double) this.totalItems.get() / count;
+    }
+
+    public long getAverageDurationMillis() {
+        final long count = this.count.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(this.totalDurationNanos.get() / count);
+    }
+
+    public long getMaxDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxDurationNanos.get());
+    }
+
+    public void reset() {
+        this.count.set(0);
+        this.totalItems.set(0);
+        this.maxItems.set(0);
+        this.totalDurationNanos.set(0);
+        this.maxDurationNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.US,
+                "%s: count=%d, items(avg=%.1f, max=%d), duration(avg=%dms, max=%dms)",
+                this.name,
+                getCount(),
+                getAverageItems(),
+                getMaxItems(),
+                getAverageDurationMillis(),
+                getMaxDurationMillis());
+    }
+}
@@ -119,6 +119,20 @@ public final class MessageAdapter extends RecyclerView.Adapter<RecyclerView.View
         }
     }
 
+    // Prepends a page of older messages to the top of the list.
+    public final void addPreviousMessages(final List<SofaMessage> previousMessages) {
+        final List<SofaMessage> messagesToAdd = new ArrayList<>(previousMessages.size());
+        for (final SofaMessage sofaMessage : previousMessages) {
+            if (shouldShowChatMessage(sofaMessage)) {
+                messagesToAdd.add(sofaMessage);
+            }
+        }
+
+        if (messagesToAdd.size() == 0) return;
+        this.sofaMessages.addAll(0, messagesToAdd);
+        notifyItemRangeInserted(0, messagesToAdd.size());
+    }
+
     private void addMessage(final SofaMessage sofaMessage) {
         if (!shouldShowChatMessage(sofaMessage)) return;
         this.sofaMessages.add(sofaMessage);
@@ -23,7 +23,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
-import com.toshi.model.local.Conversation;
+import com.toshi.model.local.ConversationSummary;
 import com.toshi.model.sofa.SofaMessage;
 import com.toshi.model.local.User;
 import com.toshi.model.sofa.Message;
@@ -44,8 +44,8 @@ import java.util.List;
 
 public class RecentAdapter extends RecyclerView.Adapter<ThreadViewHolder> implements ClickableViewHolder.OnClickListener {
 
-    private List<Conversation> conversations;
-    private OnItemClickListener<Conversation> onItemClickListener;
+    private List<ConversationSummary> conversations;
+    private OnItemClickListener<ConversationSummary> onItemClickListener;
 
     public RecentAdapter() {
         this.conversations = new ArrayList<>(0);
@@ -59,7 +59,7 @@ public class RecentAdapter extends RecyclerView.Adapter<ThreadViewHolder> implem
 
     @Override
     public void onBindViewHolder(final ThreadViewHolder holder, final int position) {
-        final Conversation conversation = this.conversations.get(position);
+        final ConversationSummary conversation = this.conversations.get(position);
         holder.setThread(conversation);
 
         final String formattedLatestMessage = formatLastMessage(conversation.getLatestMessage());
@@ -78,21 +78,21 @@ public class RecentAdapter extends RecyclerView.Adapter<ThreadViewHolder> implem
             return;
         }
 
-        final Conversation clickedConversation = conversations.get(position);
+        final ConversationSummary clickedConversation = conversations.get(position);
         this.onItemClickListener.onItemClick(clickedConversation);
     }
 
-    public void setConversations(final List<Conversation> conversations) {
+    public void setConversations(final List<ConversationSummary> conversations) {
         this.conversations = conversations;
         notifyDataSetChanged();
     }
 
-    public RecentAdapter setOnItemClickListener(final OnItemClickListener<Conversation> onItemClickListener) {
+    public RecentAdapter setOnItemClickListener(final OnItemClickListener<ConversationSummary> onItemClickListener) {
         this.onItemClickListener = onItemClickListener;
         return this;
     }
 
-    public void updateConversation(final Conversation conversation) {
+    public void updateConversation(final ConversationSummary conversation) {
         final int position = this.conversations.indexOf(conversation);
         if (position == -1) {
             this.conversations.add(0, conversation);
@@ -22,7 +22,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.toshi.R;
-import com.toshi.model.local.Conversation;
+import com.toshi.model.local.ConversationSummary;
 import com.toshi.model.local.Recipient;
 import com.toshi.util.ImageUtil;
 import com.toshi.util.LocaleUtil;
@@ -51,7 +51,7 @@ public class ThreadViewHolder extends ClickableViewHolder {
         this.unreadCounter = (TextView) view.findViewById(R.id.unread_counter);
     }
 
-    public void setThread(final Conversation conversation) {
+    public void setThread(final ConversationSummary conversation) {
         final Recipient recipient = conversation.getRecipient();
         this.name.setText(recipient.getDisplayName());
         this.unreadCounter.setText(String.valueOf(conversation.getNumberOfUnread()));
@@ -68,7 +68,7 @@ public class ThreadViewHolder extends ClickableViewHolder {
         this.latestMessage.setText(latestMessage);
     }
 
-    private String getLastMessageCreationTime(final Conversation conversation) {
+    private String getLastMessageCreationTime(final ConversationSummary conversation) {
         if (conversation.getLatestMessage() == null) {
             // Todo calculate time when group has been created
             return "Todo";
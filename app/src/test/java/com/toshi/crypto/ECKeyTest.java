@@ -0,0 +1,79 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto;
+
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ECKeyTest {
+
+    private static final int NUMBER_OF_VECTORS = 1000;
+
+    @Test
+    public void signMatchesSignatureAndRecoveryIdFoundByTrialRecovery() {
+        final Random random = new Random(42);
+        for (int i = 0; i < NUMBER_OF_VECTORS; i++) {
+            final ECKey key = createKey(random);
+            final byte[] messageHash = new byte[32];
+            random.nextBytes(messageHash);
+
+            final ECKey.ECDSASignature expected = key.doSign(messageHash);
+            final ECKey.ECDSASignature signature = key.sign(messageHash);
+
+            assertThat(signature, is(expected));
+            assertThat(signature.v, is((byte) (findRecoveryIdByTrial(key, expected, messageHash) + 27)));
+        }
+    }
+
+    @Test
+    public void signatureRecoversSigningAddress() throws Exception {
+        final Random random = new Random(7);
+        final ECKey key = createKey(random);
+        final byte[] messageHash = new byte[32];
+        random.nextBytes(messageHash);
+
+        final ECKey.ECDSASignature signature = key.sign(messageHash);
+        final byte[] recoveredAddress = ECKey.signatureToAddress(messageHash, signature);
+
+        assertThat(Arrays.equals(recoveredAddress, key.getAddress()), is(true));
+    }
+
+    private ECKey createKey(final Random random) {
+        BigInteger privateKey;
+        do {
+            privateKey = new BigInteger(256, random);
+        } while (privateKey.signum() == 0 || privateKey.compareTo(ECKey.CURVE.getN()) >= 0);
+        return ECKey.fromPrivate(privateKey);
+    }
+
+    private int findRecoveryIdByTrial(final ECKey key, final ECKey.ECDSASignature signature, final byte[] messageHash) {
+        final byte[] publicKey = key.getPubKey();
+        for (int recId = 0; recId < 4; recId++) {
+            final byte[] recovered = ECKey.recoverPubBytesFromSignature(recId, signature, messageHash);
+            if (recovered != null && Arrays.equals(recovered, publicKey)) return recId;
+        }
+        return -1;
+    }
+}
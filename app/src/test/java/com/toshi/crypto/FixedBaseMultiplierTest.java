@@ -0,0 +1,62 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto;
+
+
+import org.junit.Test;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FixedBaseMultiplierTest {
+
+    private static final BigInteger N = ECKey.CURVE.getN();
+
+    @Test
+    public void multiplyMatchesGenericMultiplicationForRandomScalars() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            assertMatchesGenericMultiplication(new BigInteger(256, random).mod(N));
+        }
+    }
+
+    @Test
+    public void multiplyMatchesGenericMultiplicationForEdgeScalars() {
+        assertMatchesGenericMultiplication(BigInteger.ONE);
+        assertMatchesGenericMultiplication(BigInteger.valueOf(15));
+        assertMatchesGenericMultiplication(BigInteger.valueOf(16));
+        assertMatchesGenericMultiplication(N.subtract(BigInteger.ONE));
+        assertMatchesGenericMultiplication(N.add(BigInteger.TEN));
+    }
+
+    @Test
+    public void multiplyByZeroIsInfinity() {
+        assertThat(FixedBaseMultiplier.multiply(BigInteger.ZERO).isInfinity(), is(true));
+        assertThat(FixedBaseMultiplier.multiply(N).isInfinity(), is(true));
+    }
+
+    private void assertMatchesGenericMultiplication(final BigInteger scalar) {
+        final ECPoint expected = ECKey.CURVE.getG().multiply(scalar).normalize();
+        final ECPoint result = FixedBaseMultiplier.multiply(scalar);
+        assertThat(result.getEncoded(false), is(expected.getEncoded(false)));
+    }
+}
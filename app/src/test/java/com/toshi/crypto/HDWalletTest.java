@@ -24,6 +24,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 
@@ -36,6 +40,10 @@ public class HDWalletTest {
     // Path `m/44'/60'/0'/0'
     private final String expectedPaymentAddress = "0x9858effd232b4033e47d90003d41ec34ecaeda94";
 
+    // Paths `m/44'/60'/0'/0/1` and `m/44'/60'/0'/0/2`
+    private final String expectedSecondPaymentAddress = "0x6fac4d18c912343bf86fa7049364dd4e424ab9c0";
+    private final String expectedThirdPaymentAddress = "0xb6716976a3ebe8d39aceb04372f22ff8e6802d7a";
+
     // Mocks
     private SharedPreferences sharedPreferencesMock;
 
@@ -76,4 +84,37 @@ public class HDWalletTest {
                         .value();
         assertThat(wallet.getPaymentAddress(), is(this.expectedPaymentAddress));
     }
+
+    @Test
+    public void paymentAddressesStartWithPaymentAddress() {
+        final HDWallet wallet =
+                new HDWallet(this.sharedPreferencesMock)
+                        .getExistingWallet()
+                        .toBlocking()
+                        .value();
+        final List<String> paymentAddresses =
+                wallet
+                        .getPaymentAddresses(0, 3)
+                        .toBlocking()
+                        .value();
+        assertThat(paymentAddresses, is(Arrays.asList(
+                this.expectedPaymentAddress,
+                this.expectedSecondPaymentAddress,
+                this.expectedThirdPaymentAddress)));
+    }
+
+    @Test
+    public void paymentAddressesCanStartFromAnyIndex() {
+        final HDWallet wallet =
+                new HDWallet(this.sharedPreferencesMock)
+                        .getExistingWallet()
+                        .toBlocking()
+                        .value();
+        final List<String> paymentAddresses =
+                wallet
+                        .getPaymentAddresses(2, 1)
+                        .toBlocking()
+                        .value();
+        assertThat(paymentAddresses, is(Collections.singletonList(this.expectedThirdPaymentAddress)));
+    }
 }
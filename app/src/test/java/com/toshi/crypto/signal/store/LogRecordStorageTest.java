@@ -0,0 +1,253 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto.signal.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class LogRecordStorageTest {
+
+    private File file;
+    private LogRecordStorage storage;
+
+    @Before
+    public void setup() throws IOException {
+        this.file = File.createTempFile("records", ".log");
+        this.file.delete();
+        this.storage = new LogRecordStorage(this.file);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        this.storage.close();
+        this.file.delete();
+    }
+
+    @Test
+    public void storedRecordsCanBeLoaded() throws IOException {
+        this.storage.put("alice", bytes(1, 2, 3));
+        this.storage.put("bob.2", new byte[0]);
+
+        assertThat(this.storage.get("alice"), is(bytes(1, 2, 3)));
+        assertThat(this.storage.get("bob.2"), is(new byte[0]));
+        assertThat(this.storage.get("carol"), is(nullValue()));
+        assertThat(this.storage.contains("alice"), is(true));
+        assertThat(this.storage.contains("carol"), is(false));
+    }
+
+    @Test
+    public void latestVersionOfARecordIsLoaded() throws IOException {
+        this.storage.put("alice", bytes(1));
+        this.storage.put("alice", bytes(2, 2));
+
+        assertThat(this.storage.get("alice"), is(bytes(2, 2)));
+        assertThat(this.storage.getKeys().size(), is(1));
+    }
+
+    @Test
+    public void removedRecordsAreGone() throws IOException {
+        this.storage.put("alice", bytes(1));
+        this.storage.put("bob", bytes(2));
+        this.storage.remove("alice");
+
+        assertThat(this.storage.get("alice"), is(nullValue()));
+        assertThat(this.storage.getKeys(), is(Arrays.asList("bob")));
+    }
+
+    @Test
+    public void recordsSurviveReopening() throws IOException {
+        this.storage.put("alice", bytes(1));
+        this.storage.put("bob", bytes(2));
+        this.storage.put("alice", bytes(3));
+        this.storage.remove("bob");
+        reopen();
+
+        assertThat(this.storage.get("alice"), is(bytes(3)));
+        assertThat(this.storage.contains("bob"), is(false));
+    }
+
+    @Test
+    public void recordsSurviveGrowingTheFile() throws IOException {
+        final byte[] value = new byte[10 * 1024];
+        for (int i = 0; i < 100; i++) {
+            value[0] = (byte) i;
+            this.storage.put("record" + i, value);
+        }
+        reopen();
+
+        assertThat(this.storage.getKeys().size(), is(100));
+        for (int i = 0; i < 100; i++) {
+            assertThat(this.storage.get("record" + i)[0], is((byte) i));
+        }
+    }
+
+    @Test
+    public void partiallyWrittenRecordIsDropped() throws IOException {
+        this.storage.put("alice", bytes(1, 2, 3));
+        this.storage.put("bob", bytes(4, 5, 6));
+        this.storage.close();
+
+        // The last byte of the value of bob
+        final int bobEnd = 8 + 2 * 12 + "alice".length() + "bob".length() + 6;
+        corrupt(bobEnd - 1);
+        this.storage = new LogRecordStorage(this.file);
+
+        assertThat(this.storage.get("alice"), is(bytes(1, 2, 3)));
+        assertThat(this.storage.contains("bob"), is(false));
+
+        this.storage.put("carol", bytes(7));
+        reopen();
+
+        assertThat(this.storage.get("alice"), is(bytes(1, 2, 3)));
+        assertThat(this.storage.get("carol"), is(bytes(7)));
+        assertThat(this.storage.contains("bob"), is(false));
+    }
+
+    @Test
+    public void logWithoutHeaderIsReinitialised() throws IOException {
+        this.storage.close();
+        // A new log whose header never reached the disk
+        final RandomAccessFile recordFile = new RandomAccessFile(this.file, "rw");
+        recordFile.write(new byte[8]);
+        recordFile.close();
+        this.storage = new LogRecordStorage(this.file);
+
+        assertThat(this.storage.getKeys().isEmpty(), is(true));
+
+        this.storage.put("alice", bytes(1));
+        reopen();
+
+        assertThat(this.storage.get("alice"), is(bytes(1)));
+    }
+
+    @Test
+    public void compactionKeepsLiveRecords() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            this.storage.put("alice", bytes(i));
+            this.storage.put("bob" + i, bytes(i));
+        }
+        this.storage.remove("bob3");
+        this.storage.compact();
+
+        assertThat(this.storage.getGarbageRatio(), is(0.0));
+        assertThat(this.storage.get("alice"), is(bytes(9)));
+        assertThat(this.storage.getKeys().size(), is(10));
+        assertThat(this.storage.contains("bob3"), is(false));
+
+        this.storage.put("carol", bytes(1));
+        reopen();
+
+        assertThat(this.storage.get("alice"), is(bytes(9)));
+        assertThat(this.storage.get("bob4"), is(bytes(4)));
+        assertThat(this.storage.get("carol"), is(bytes(1)));
+        assertThat(this.storage.getKeys().size(), is(11));
+    }
+
+    @Test
+    public void batchIsWrittenTogether() throws IOException {
+        this.storage.put("alice", bytes(1));
+        final Map<String, byte[]> batch = new LinkedHashMap<>();
+        batch.put("alice", null);
+        batch.put("bob", bytes(2));
+        batch.put("carol", bytes(3));
+        this.storage.write(batch);
+
+        assertThat(this.storage.contains("alice"), is(false));
+        assertThat(this.storage.get("bob"), is(bytes(2)));
+        reopen();
+
+        assertThat(this.storage.contains("alice"), is(false));
+        assertThat(this.storage.get("bob"), is(bytes(2)));
+        assertThat(this.storage.get("carol"), is(bytes(3)));
+    }
+
+    @Test
+    public void partiallyWrittenBatchIsDropped() throws IOException {
+        this.storage.put("alice", bytes(1));
+        final Map<String, byte[]> batch = new LinkedHashMap<>();
+        batch.put("alice", null);
+        batch.put("bob", bytes(2));
+        this.storage.write(batch);
+        this.storage.close();
+
+        // The last byte of the value of bob, the last record in the batch
+        final int batchEnd = 8 + 12 + "alice".length() + 1 + 12 + 12 + "alice".length() + 12 + "bob".length() + 1;
+        corrupt(batchEnd - 1);
+        this.storage = new LogRecordStorage(this.file);
+
+        assertThat(this.storage.get("alice"), is(bytes(1)));
+        assertThat(this.storage.contains("bob"), is(false));
+    }
+
+    @Test
+    public void onlyExistingRecordsAreRead() throws IOException {
+        this.storage.put("alice", bytes(1));
+        this.storage.put("bob", bytes(2));
+        this.storage.remove("bob");
+
+        final Map<String, byte[]> records = this.storage.read(Arrays.asList("alice", "bob", "carol"));
+
+        assertThat(records.size(), is(1));
+        assertThat(records.get("alice"), is(bytes(1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreNotOpened() throws IOException {
+        this.storage.close();
+        final RandomAccessFile other = new RandomAccessFile(this.file, "rw");
+        other.setLength(0);
+        other.write(bytes(1, 2, 3, 4, 5, 6, 7, 8, 9));
+        other.close();
+
+        this.storage = new LogRecordStorage(this.file);
+    }
+
+    private void reopen() throws IOException {
+        this.storage.close();
+        this.storage = new LogRecordStorage(this.file);
+    }
+
+    private void corrupt(final int position) throws IOException {
+        final RandomAccessFile recordFile = new RandomAccessFile(this.file, "rw");
+        recordFile.seek(position);
+        final int value = recordFile.read();
+        recordFile.seek(position);
+        recordFile.write(value ^ 0xff);
+        recordFile.close();
+    }
+
+    private static byte[] bytes(final int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
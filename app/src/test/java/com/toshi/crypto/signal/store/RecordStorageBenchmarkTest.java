@@ -0,0 +1,129 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto.signal.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+// Compares the one-file-per-record storage with the record log at roughly the size
+// of a large session store. Not part of the normal run; remove @Ignore to run it.
+@Ignore("Benchmark")
+public class RecordStorageBenchmarkTest {
+
+    private static final int RECORD_COUNT = 10000;
+    private static final int KEY_LISTINGS = 100;
+
+    private File root;
+    private byte[][] values;
+
+    @Before
+    public void setup() throws IOException {
+        this.root = File.createTempFile("records", "");
+        this.root.delete();
+        this.root.mkdirs();
+
+        final Random random = new Random(1);
+        this.values = new byte[RECORD_COUNT][];
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            // About the size of a serialized session record
+            this.values[i] = new byte[1200 + random.nextInt(800)];
+            random.nextBytes(this.values[i]);
+        }
+    }
+
+    @After
+    public void teardown() {
+        delete(this.root);
+    }
+
+    @Test
+    public void compareFilesWithLog() throws IOException {
+        final File directory = new File(this.root, "sessions-v2");
+        directory.mkdirs();
+        measure("files", new FileRecordStorage(directory));
+
+        final File logFile = new File(this.root, "sessions.log");
+        final LogRecordStorage log = new LogRecordStorage(logFile);
+        measure("log", log);
+        log.close();
+
+        final long start = System.nanoTime();
+        final LogRecordStorage reopened = new LogRecordStorage(logFile);
+        final long end = System.nanoTime();
+        System.out.printf("log: reopen with %d records %.1f ms%n",
+                reopened.getKeys().size(), (end - start) / 1e6);
+        assertThat(reopened.getKeys().size(), is(RECORD_COUNT));
+        reopened.close();
+    }
+
+    private void measure(final String name, final RecordStorage storage) throws IOException {
+        final Random random = new Random(2);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            storage.put(keyFor(i), this.values[i]);
+        }
+        final long stored = System.nanoTime();
+
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            final int index = random.nextInt(RECORD_COUNT);
+            assertThat(storage.get(keyFor(index)).length, is(this.values[index].length));
+        }
+        final long loaded = System.nanoTime();
+
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            storage.put(keyFor(random.nextInt(RECORD_COUNT)), this.values[i]);
+        }
+        final long overwritten = System.nanoTime();
+
+        for (int i = 0; i < KEY_LISTINGS; i++) {
+            assertThat(storage.getKeys().size(), is(RECORD_COUNT));
+        }
+        final long listed = System.nanoTime();
+
+        System.out.printf("%s: store %.1f us, load %.1f us, overwrite %.1f us, getKeys %.2f ms%n",
+                name,
+                (stored - start) / 1e3 / RECORD_COUNT,
+                (loaded - stored) / 1e3 / RECORD_COUNT,
+                (overwritten - loaded) / 1e3 / RECORD_COUNT,
+                (listed - overwritten) / 1e6 / KEY_LISTINGS);
+    }
+
+    private String keyFor(final int index) {
+        return "0x" + Integer.toHexString(index * 7919) + ".1";
+    }
+
+    private void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto.signal.store;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class SessionIndexTest {
+
+    @Test
+    public void tracksDevicesPerName() {
+        final SessionIndex index = new SessionIndex();
+        index.put("0xalice", 1, true);
+        index.put("0xalice", 2, false);
+        index.put("0xbob", 1, true);
+
+        assertThat(index.getDeviceIds("0xalice").size(), is(2));
+        assertThat(index.getDeviceIds("0xcarol").isEmpty(), is(true));
+        assertThat(index.getDeviceIds("0xbob"), is(Collections.singletonList(1)));
+
+        index.remove("0xalice", 1);
+        assertThat(index.getDeviceIds("0xalice"), is(Collections.singletonList(2)));
+
+        index.remove("0xalice", 2);
+        assertThat(index.getNames(), is(Arrays.asList("0xbob")));
+    }
+
+    @Test
+    public void tracksSenderChains() {
+        final SessionIndex index = new SessionIndex();
+        index.put("0xalice", 1, true);
+        index.put("0xalice", 2, false);
+
+        assertThat(index.hasSenderChain("0xalice", 1), is(true));
+        assertThat(index.hasSenderChain("0xalice", 2), is(false));
+        assertThat(index.hasSenderChain("0xbob", 1), is(false));
+
+        index.put("0xalice", 1, false);
+        assertThat(index.hasSenderChain("0xalice", 1), is(false));
+    }
+
+    @Test
+    public void metadataRoundTrips() {
+        final String key = SessionIndex.getMetadataKey("0xalice.2");
+
+        assertThat(SessionIndex.isMetadataKey(key), is(true));
+        assertThat(SessionIndex.isMetadataKey("0xalice.2"), is(false));
+        assertThat(SessionIndex.decodeHasSenderChain(SessionIndex.encodeMetadata(true)), is(true));
+        assertThat(SessionIndex.decodeHasSenderChain(SessionIndex.encodeMetadata(false)), is(false));
+    }
+}
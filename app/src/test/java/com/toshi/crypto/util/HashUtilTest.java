@@ -0,0 +1,83 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto.util;
+
+
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HashUtilTest {
+
+    private final byte[] input = createInput(5000);
+    private final byte[] expectedSliceHash = HashUtil.sha3(Arrays.copyOfRange(this.input, 7, 4007));
+
+    @Test
+    public void sha3OfEmptyInputMatchesKnownHash() {
+        final String result = Hex.toHexString(HashUtil.sha3(new byte[0]));
+        assertThat(result, is("c5d2460186f7233c927e7db2dcc703c0e500b653ca82273b7bfad8045d85a470"));
+    }
+
+    @Test
+    public void sha3OfAbcMatchesKnownHash() {
+        final String result = Hex.toHexString(HashUtil.sha3("abc".getBytes()));
+        assertThat(result, is("4e03657aea45a94fc7d47ba826c8d667c0d1e6e33a64a036ec44f58fa12d6c45"));
+    }
+
+    @Test
+    public void sha3OfSliceMatchesSha3OfCopy() {
+        assertThat(HashUtil.sha3(this.input, 7, 4000), is(this.expectedSliceHash));
+    }
+
+    @Test
+    public void sha3IntoBufferWritesAtOffset() {
+        final byte[] output = new byte[40];
+        HashUtil.sha3(this.input, 7, 4000, output, 8);
+        assertThat(Arrays.copyOfRange(output, 8, 40), is(this.expectedSliceHash));
+    }
+
+    @Test
+    public void sha3OfHeapByteBufferMatchesSha3OfCopy() {
+        final ByteBuffer buffer = ByteBuffer.wrap(this.input, 7, 4000).slice();
+        assertThat(HashUtil.sha3(buffer), is(this.expectedSliceHash));
+    }
+
+    @Test
+    public void sha3OfDirectByteBufferConsumesRemainingBytes() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(this.input.length);
+        buffer.put(this.input);
+        buffer.position(7);
+        buffer.limit(4007);
+
+        assertThat(HashUtil.sha3(buffer), is(this.expectedSliceHash));
+        assertThat(buffer.hasRemaining(), is(false));
+    }
+
+    private static byte[] createInput(final int length) {
+        final byte[] input = new byte[length];
+        for (int i = 0; i < length; i++) {
+            input[i] = (byte) i;
+        }
+        return input;
+    }
+}
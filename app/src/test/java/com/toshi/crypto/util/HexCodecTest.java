@@ -0,0 +1,89 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.toshi.crypto.util;
+
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class HexCodecTest {
+
+    @Test
+    public void encodeUsesLowerCaseDigits() {
+        assertThat(HexCodec.encode(new byte[] {0x00, 0x0f, (byte) 0xa0, (byte) 0xff}), is("000fa0ff"));
+    }
+
+    @Test
+    public void encodeWithPrefixAddsPrefix() {
+        assertThat(HexCodec.encodeWithPrefix(new byte[] {0x12, (byte) 0xab}), is("0x12ab"));
+        assertThat(HexCodec.encodeWithPrefix(new byte[0]), is("0x"));
+    }
+
+    @Test
+    public void encodeWritesIntoCallersBuffer() {
+        final char[] chars = "[------]".toCharArray();
+        final int end = HexCodec.encode(new byte[] {0x01, 0x02, 0x03, 0x04}, 1, 3, chars, 1);
+        assertThat(end, is(7));
+        assertThat(new String(chars), is("[020304]"));
+    }
+
+    @Test
+    public void decodeAcceptsPrefixAndEitherCase() {
+        final byte[] expected = {0x3b, (byte) 0x9a, (byte) 0xca, 0x00};
+        assertThat(HexCodec.decode("3b9aca00"), is(expected));
+        assertThat(HexCodec.decode("0x3B9ACA00"), is(expected));
+        assertThat(HexCodec.decode("0X3b9aCa00"), is(expected));
+    }
+
+    @Test
+    public void decodeReadsOddLengthAsIfItHadLeadingZero() {
+        assertThat(HexCodec.decode("0xabc"), is(new byte[] {0x0a, (byte) 0xbc}));
+        assertThat(HexCodec.decode("0x"), is(new byte[0]));
+    }
+
+    @Test
+    public void decodeWritesIntoCallersBuffer() {
+        final byte[] out = new byte[4];
+        final int end = HexCodec.decode("xx0102yy", 2, 6, out, 1);
+        assertThat(end, is(3));
+        assertThat(out, is(new byte[] {0, 1, 2, 0}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeRejectsInvalidCharacters() {
+        HexCodec.decode("0x12g4");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeRejectsNonAsciiCharacters() {
+        HexCodec.decode("12\u0661\u0662");
+    }
+
+    @Test
+    public void decodeReversesEncode() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            final byte[] data = new byte[random.nextInt(100)];
+            random.nextBytes(data);
+            assertThat(HexCodec.decode(HexCodec.encodeWithPrefix(data)), is(data));
+        }
+    }
+}
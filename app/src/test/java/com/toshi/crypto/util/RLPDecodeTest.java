@@ -0,0 +1,137 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.toshi.crypto.util;
+
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class RLPDecodeTest {
+
+    private static final int NUMBER_OF_STRUCTURES = 2000;
+    private static final int[] ITEM_LENGTHS = {0, 1, 2, 55, 56, 300};
+
+    @Test
+    public void decodeMatchesEncodedStructure() {
+        final Random random = new Random(42);
+        for (int i = 0; i < NUMBER_OF_STRUCTURES; i++) {
+            final Object[] structure = randomList(random, 0);
+            final byte[] encoded = RLP.encode(structure);
+            final RLPList decoded = RLP.decode2(encoded);
+            assertThat(decoded.size(), is(1));
+            assertMatches(decoded.get(0), structure, encoded);
+        }
+    }
+
+    @Test
+    public void decodedElementsAreViewsOfTheInput() {
+        final byte[] encoded = RLP.encode(new Object[] {new byte[] {1, 2, 3}, new Object[] {new byte[] {4}}});
+        final RLPList list = (RLPList) RLP.decode2(encoded).get(0);
+        final RLPElement item = list.get(0);
+
+        assertThat(list.getBuffer(), is(sameInstance(encoded)));
+        assertThat(item.getBuffer(), is(sameInstance(encoded)));
+        assertThat(item.getOffset(), is(2));
+        assertThat(item.getLength(), is(3));
+        assertThat(item.getRLPData(), is(new byte[] {1, 2, 3}));
+        assertThat(((RLPList) list.get(1)).get(0).getRLPData(), is(new byte[] {4}));
+    }
+
+    @Test
+    public void iterateMatchesDecode() {
+        final Random random = new Random(7);
+        for (int i = 0; i < NUMBER_OF_STRUCTURES; i++) {
+            final Object[] structure = randomList(random, 0);
+            final byte[] encoded = RLP.encode(structure);
+            final Iterator<RLPElement> iterator = RLP.iterate(encoded, 0);
+            for (final Object element : structure) {
+                assertThat(iterator.hasNext(), is(true));
+                assertMatches(iterator.next(), element, encoded);
+            }
+            assertThat(iterator.hasNext(), is(false));
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void decodeOfTruncatedItemThrows() {
+        final byte[] encoded = RLP.encode(new byte[] {1, 2, 3});
+        RLP.decode2(Arrays.copyOf(encoded, encoded.length - 1));
+    }
+
+    // A list of two bytes whose first element claims two bytes of its own, running into the byte after the list
+    private static final byte[] NESTED_ELEMENT_PAST_ITS_LIST = {(byte) 0xc2, (byte) 0xc2, 0x01, 0x02};
+
+    @Test(expected = RuntimeException.class)
+    public void decodeOfElementPastItsListThrows() {
+        RLP.decode2(NESTED_ELEMENT_PAST_ITS_LIST);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void iterateOverElementPastItsListThrows() {
+        RLP.iterate(NESTED_ELEMENT_PAST_ITS_LIST, 0).next();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void iterateOverItemThrows() {
+        RLP.iterate(RLP.encode(new byte[] {1, 2, 3}), 0);
+    }
+
+    private static void assertMatches(final RLPElement element, final Object expected, final byte[] buffer) {
+        assertThat(element.getBuffer(), is(sameInstance(buffer)));
+        if (expected instanceof Object[]) {
+            final Object[] expectedList = (Object[]) expected;
+            final RLPList list = (RLPList) element;
+            assertThat(list.getRLPData(), is(RLP.encode(expectedList)));
+            assertThat(list.size(), is(expectedList.length));
+            for (int i = 0; i < expectedList.length; i++) {
+                assertMatches(list.get(i), expectedList[i], buffer);
+            }
+        } else {
+            final byte[] expectedBytes = (byte[]) expected;
+            assertThat(element.getLength(), is(expectedBytes.length));
+            if (expectedBytes.length == 0) {
+                assertThat(element.getRLPData(), is(nullValue()));
+            } else {
+                assertThat(element.getRLPData(), is(expectedBytes));
+            }
+        }
+    }
+
+    private static Object[] randomList(final Random random, final int depth) {
+        final Object[] list = new Object[random.nextInt(6)];
+        for (int i = 0; i < list.length; i++) {
+            list[i] = depth < 3 && random.nextInt(4) == 0
+                    ? randomList(random, depth + 1)
+                    : randomItem(random);
+        }
+        return list;
+    }
+
+    private static byte[] randomItem(final Random random) {
+        final byte[] item = new byte[ITEM_LENGTHS[random.nextInt(ITEM_LENGTHS.length)]];
+        random.nextBytes(item);
+        return item;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto.util;
+
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.spongycastle.util.Arrays.concatenate;
+import static org.spongycastle.util.BigIntegers.asUnsignedByteArray;
+
+public class RLPWriterTest {
+
+    private static final int NUMBER_OF_STRUCTURES = 2000;
+
+    @Test
+    public void encodeMatchesConcatenatingEncoderForRandomStructures() {
+        final Random random = new Random(42);
+        for (int i = 0; i < NUMBER_OF_STRUCTURES; i++) {
+            final Object structure = randomStructure(random, 0);
+            assertThat(RLP.encode(structure), is(encodeByConcatenation(structure)));
+        }
+    }
+
+    @Test
+    public void builderMatchesEncodeOfEquivalentStructure() {
+        final byte[] address = new byte[20];
+        final byte[] longData = new byte[300];
+        new Random(7).nextBytes(longData);
+
+        final byte[] written = new RLPWriter()
+                .startList()
+                .writeBigInteger(BigInteger.valueOf(9))
+                .writeLong(20000000000L)
+                .writeInt(0)
+                .writeBytes(address)
+                .writeString("dog")
+                .startList()
+                .writeBytes(longData)
+                .endList()
+                .endList()
+                .toByteArray();
+
+        final Object[] structure = new Object[] {
+                BigInteger.valueOf(9),
+                20000000000L,
+                0,
+                address,
+                "dog",
+                new Object[] { longData }
+        };
+        assertThat(written, is(RLP.encode(structure)));
+    }
+
+    @Test
+    public void encodesKnownValues() {
+        assertThat(new RLPWriter().writeString("dog").toByteArray(), is(new byte[] {(byte) 0x83, 'd', 'o', 'g'}));
+        assertThat(new RLPWriter().startList().endList().toByteArray(), is(new byte[] {(byte) 0xc0}));
+        assertThat(new RLPWriter().writeInt(0).toByteArray(), is(new byte[] {(byte) 0x80}));
+        assertThat(new RLPWriter().writeInt(15).toByteArray(), is(new byte[] {0x0f}));
+        assertThat(new RLPWriter().writeInt(1024).toByteArray(), is(new byte[] {(byte) 0x82, 0x04, 0x00}));
+        assertThat(new RLPWriter().writeBytes(new byte[] {(byte) 0x80}).toByteArray(), is(new byte[] {(byte) 0x81, (byte) 0x80}));
+    }
+
+    @Test
+    public void writeToUsesCallersBuffer() {
+        final RLPWriter writer = new RLPWriter().startList().writeString("cat").writeString("dog").endList();
+        final byte[] output = new byte[writer.getEncodedLength() + 4];
+
+        final int written = writer.writeTo(output, 4);
+
+        assertThat(written, is(writer.getEncodedLength()));
+        assertThat(output[4], is((byte) 0xc8));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unclosedListThrows() {
+        new RLPWriter().startList().writeString("cat").toByteArray();
+    }
+
+    private Object randomStructure(final Random random, final int depth) {
+        final int kind = random.nextInt(depth > 3 ? 5 : 6);
+        switch (kind) {
+            case 0: return randomBytes(random);
+            case 1: return random.nextInt(1 << random.nextInt(31));
+            case 2: return random.nextLong() >>> random.nextInt(64);
+            case 3: return new BigInteger(random.nextInt(300), random);
+            case 4: return new String(randomBytes(random));
+            default: {
+                final Object[] list = new Object[random.nextInt(random.nextBoolean() ? 4 : 80)];
+                for (int i = 0; i < list.length; i++) {
+                    list[i] = randomStructure(random, depth + 1);
+                }
+                return list;
+            }
+        }
+    }
+
+    private byte[] randomBytes(final Random random) {
+        final int[] sizes = {0, 1, 1, 2, 55, 56, 57, 255, 256, 1100};
+        final byte[] bytes = new byte[sizes[random.nextInt(sizes.length)]];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    // The previous RLP.encode, which concatenated the encoding of every element onto the output
+    private static byte[] encodeByConcatenation(final Object input) {
+        if (input instanceof Object[]) {
+            byte[] output = new byte[0];
+            for (final Object element : (Object[]) input) {
+                output = concatenate(output, encodeByConcatenation(element));
+            }
+            return concatenate(RLP.encodeLength(output.length, 0xc0), output);
+        }
+
+        final byte[] inputAsBytes = toBytes(input);
+        if (inputAsBytes.length == 1 && (inputAsBytes[0] & 0xff) < 0x80) {
+            return inputAsBytes;
+        }
+        return concatenate(RLP.encodeLength(inputAsBytes.length, 0x80), inputAsBytes);
+    }
+
+    private static byte[] toBytes(final Object input) {
+        if (input instanceof byte[]) return (byte[]) input;
+        if (input instanceof String) return ((String) input).getBytes();
+        final BigInteger value = input instanceof BigInteger
+                ? (BigInteger) input
+                : BigInteger.valueOf(((Number) input).longValue());
+        return value.equals(BigInteger.ZERO) ? new byte[0] : asUnsignedByteArray(value);
+    }
+}
@@ -55,4 +55,18 @@ public class TypeConverterTest {
         final BigInteger actual = TypeConverter.StringHexToBigInteger("notHex");
         assertThat(actual, is(expected));
     }
+
+    @Test
+    public void stringHexToByteArrayPadsOddLengthWithLeadingZero() throws Exception {
+        final byte[] expected = {0x01, 0x23};
+        final byte[] actual = TypeConverter.StringHexToByteArray("0x123");
+        assertThat(actual, is(expected));
+    }
+
+    @Test
+    public void toJsonHexAddsPrefix() {
+        final String expected = "0x00ff10";
+        final String actual = TypeConverter.toJsonHex(new byte[] {0x00, (byte) 0xff, 0x10});
+        assertThat(actual, is(expected));
+    }
 }
@@ -0,0 +1,89 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.toshi.crypto.util;
+
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class ValueTest {
+
+    private static final int NUMBER_OF_STRUCTURES = 2000;
+    private static final int[] ITEM_LENGTHS = {0, 1, 2, 8, 32, 55, 56, 300};
+
+    @Test
+    public void encodedValueMatchesDecodedValue() {
+        final Random random = new Random(42);
+        for (int i = 0; i < NUMBER_OF_STRUCTURES; i++) {
+            final byte[] encoded = RLP.encode(randomList(random, 0));
+            final Value encodedValue = Value.fromRlpEncoded(encoded);
+            final Value decodedValue = new Value(RLP.decode(encoded, 0).getDecoded());
+            assertMatches(encodedValue, decodedValue);
+        }
+    }
+
+    @Test
+    public void elementsOfEncodedListAreCached() {
+        final byte[] encoded = RLP.encode(new Object[] {new byte[] {1}, new Object[] {new byte[] {2, 3}}});
+        final Value value = Value.fromRlpEncoded(encoded);
+        assertThat(value.get(1), is(sameInstance(value.get(1))));
+        assertThat(value.get(1).get(0).asBytes(), is(new byte[] {2, 3}));
+        assertThat(value.get(1).encode(), is(RLP.encode(new Object[] {new byte[] {2, 3}})));
+        assertThat(value.get(2).isNull(), is(true));
+    }
+
+    private static void assertMatches(final Value actual, final Value expected) {
+        assertThat(actual.isList(), is(expected.isList()));
+        assertThat(actual.isBytes(), is(expected.isBytes()));
+        assertThat(actual.isString(), is(expected.isString()));
+        assertThat(actual.isNull(), is(expected.isNull()));
+        assertThat(actual.isEmpty(), is(expected.isEmpty()));
+        assertThat(actual.isHashCode(), is(expected.isHashCode()));
+        assertThat(actual.length(), is(expected.length()));
+        assertThat(actual.asBytes(), is(expected.asBytes()));
+        assertThat(actual.asString(), is(expected.asString()));
+        assertThat(actual.asLong(), is(expected.asLong()));
+        assertThat(actual.encode(), is(expected.encode()));
+        if (expected.isList()) {
+            assertThat(actual.asList().toArray(), is(expected.asList().toArray()));
+            for (int i = 0; i < expected.length(); i++) {
+                assertMatches(actual.get(i), expected.get(i));
+            }
+        }
+    }
+
+    private static Object[] randomList(final Random random, final int depth) {
+        final Object[] list = new Object[random.nextInt(6)];
+        for (int i = 0; i < list.length; i++) {
+            list[i] = depth < 3 && random.nextInt(4) == 0
+                    ? randomList(random, depth + 1)
+                    : randomItem(random);
+        }
+        return list;
+    }
+
+    private static byte[] randomItem(final Random random) {
+        final byte[] item = new byte[ITEM_LENGTHS[random.nextInt(ITEM_LENGTHS.length)]];
+        random.nextBytes(item);
+        return item;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * 	Copyright (c) 2017. Toshi Browser, Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.chat;
+
+
+import com.toshi.crypto.signal.store.ProtocolStore;
+import com.toshi.manager.model.GroupDeliveryResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.whispersystems.signalservice.api.SignalServiceMessageSender;
+import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.EncapsulatedExceptions;
+import org.whispersystems.signalservice.api.push.exceptions.NetworkFailureException;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+
+public class GroupFanOutSenderTest {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 20;
+
+    private final SignalServiceAddress alice = new SignalServiceAddress("0xalice");
+    private final SignalServiceAddress bob = new SignalServiceAddress("0xbob");
+    private final List<SignalServiceAddress> members = Arrays.asList(this.alice, this.bob);
+
+    private SignalServiceMessageSender signalMessageSenderMock;
+    private GroupFanOutSender groupSender;
+    private AtomicInteger messagesBuilt;
+
+    @Before
+    public void setup() {
+        this.signalMessageSenderMock = Mockito.mock(SignalServiceMessageSender.class);
+        this.groupSender = new GroupFanOutSender(
+                this.signalMessageSenderMock,
+                Mockito.mock(ProtocolStore.class),
+                2,
+                MAX_ATTEMPTS,
+                RETRY_DELAY_MS);
+        this.messagesBuilt = new AtomicInteger();
+    }
+
+    @After
+    public void teardown() {
+        this.groupSender.shutdown();
+    }
+
+    @Test
+    public void onlyMembersThatFailedAreRetried() throws IOException, UntrustedIdentityException {
+        Mockito
+                .doThrow(new IOException("Network is down"))
+                .doNothing()
+                .when(this.signalMessageSenderMock).sendMessage(Mockito.eq(this.bob), Mockito.any(SignalServiceDataMessage.class));
+
+        final GroupDeliveryResult result = this.groupSender.send(this.members, this::buildMessage, false);
+
+        assertThat(result.getDelivered().size(), is(2));
+        assertThat(result.hasFailures(), is(false));
+        Mockito.verify(this.signalMessageSenderMock, Mockito.times(1))
+                .sendMessage(Mockito.eq(this.alice), Mockito.any(SignalServiceDataMessage.class));
+        Mockito.verify(this.signalMessageSenderMock, Mockito.times(2))
+                .sendMessage(Mockito.eq(this.bob), Mockito.any(SignalServiceDataMessage.class));
+        // Without an attachment, every member gets the same message
+        assertThat(this.messagesBuilt.get(), is(1));
+    }
+
+    @Test
+    public void unregisteredMembersAreNotRetried() throws IOException, UntrustedIdentityException {
+        Mockito
+                .doThrow(new UnregisteredUserException(this.bob.getNumber(), new IOException()))
+                .when(this.signalMessageSenderMock).sendMessage(Mockito.eq(this.bob), Mockito.any(SignalServiceDataMessage.class));
+
+        final GroupDeliveryResult result = this.groupSender.send(this.members, this::buildMessage, false);
+
+        assertThat(result.getDelivered(), is(Collections.singletonList(this.alice)));
+        assertThat(result.getUnregistered(), is(Collections.singletonList(this.bob)));
+        assertThat(result.hasFailures(), is(false));
+        Mockito.verify(this.signalMessageSenderMock, Mockito.times(1))
+                .sendMessage(Mockito.eq(this.bob), Mockito.any(SignalServiceDataMessage.class));
+    }
+
+    @Test
+    public void membersAreReportedFailedOnceTheAttemptsAreUsedUp() throws IOException, UntrustedIdentityException {
+        Mockito
+                .doThrow(new IOException("Network is down"))
+                .when(this.signalMessageSenderMock).sendMessage(Mockito.eq(this.bob), Mockito.any(SignalServiceDataMessage.class));
+
+        final long startTime = System.currentTimeMillis();
+        final GroupDeliveryResult result = this.groupSender.send(this.members, this::buildMessage, false);
+        final long duration = System.currentTimeMillis() - startTime;
+
+        assertThat(result.getDelivered(), is(Collections.singletonList(this.alice)));
+        assertThat(result.getFailed(), is(Collections.singletonList(this.bob)));
+        Mockito.verify(this.signalMessageSenderMock, Mockito.times(MAX_ATTEMPTS))
+                .sendMessage(Mockito.eq(this.bob), Mockito.any(SignalServiceDataMessage.class));
+        // The delay doubles with every retry
+        assertThat(duration, is(greaterThanOrEqualTo(RETRY_DELAY_MS + 2 * RETRY_DELAY_MS)));
+    }
+
+    @Test
+    public void attachmentIsFirstSentAsASingleMessage() throws IOException, UntrustedIdentityException, EncapsulatedExceptions {
+        final NetworkFailureException bobFailure = new NetworkFailureException(this.bob.getNumber(), new IOException());
+        Mockito
+                .doThrow(new EncapsulatedExceptions(
+                        Collections.<UntrustedIdentityException>emptyList(),
+                        Collections.<UnregisteredUserException>emptyList(),
+                        Collections.singletonList(bobFailure)))
+                .when(this.signalMessageSenderMock).sendMessage(Mockito.eq(this.members), Mockito.any(SignalServiceDataMessage.class));
+
+        final GroupDeliveryResult result = this.groupSender.send(this.members, this::buildMessage, true);
+
+        assertThat(result.getDelivered().size(), is(2));
+        assertThat(result.hasFailures(), is(false));
+        // The retry goes to bob alone, with a message of its own for the attachment stream
+        Mockito.verify(this.signalMessageSenderMock, Mockito.never())
+                .sendMessage(Mockito.eq(this.alice), Mockito.any(SignalServiceDataMessage.class));
+        Mockito.verify(this.signalMessageSenderMock, Mockito.times(1))
+                .sendMessage(Mockito.eq(this.bob), Mockito.any(SignalServiceDataMessage.class));
+        assertThat(this.messagesBuilt.get(), is(2));
+    }
+
+    private SignalServiceDataMessage buildMessage() {
+        this.messagesBuilt.incrementAndGet();
+        return SignalServiceDataMessage.newBuilder()
+                .withBody("Hello")
+                .build();
+    }
+}